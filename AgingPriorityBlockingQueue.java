@@ -0,0 +1,385 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley;
+
+import android.os.SystemClock;
+
+import java.util.AbstractQueue;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A request queue that raises the effective {@link Request.Priority} of requests the longer
+ * they wait, so that {@link Request.Priority#LOW} requests are not starved by a steady stream
+ * of higher priority ones.
+ * 带有优先级老化的请求队列
+ * request每等待agingIntervalMs，有效优先级就提高一级，没有上限
+ * 这样在HIGH/IMMEDIATE的请求源源不断的时候，LOW的请求也不会永远拿不到执行的机会
+ *
+ * <p>Requests wait in one band per original priority, in {@link Request#compareTo(Request)}
+ * order. On every take the head of each band is scored by its original priority plus one step
+ * per {@code agingIntervalMs} it has waited, without a cap; the highest score wins and ties go
+ * to the request that has waited longest. A request that waits long enough therefore overtakes
+ * any newly arriving request, whatever its priority. The time each request spent queued is
+ * recorded per original priority and can be read with
+ * {@link #getWaitStats(Request.Priority)}.</p>
+ */
+public class AgingPriorityBlockingQueue extends AbstractQueue<Request<?>>
+        implements BlockingQueue<Request<?>> {
+
+    /** Upper bounds, in milliseconds, of the buckets of {@link WaitStats#getBucketCounts()}. */
+    private static final long[] BUCKET_BOUNDS_MS =
+            {10, 50, 100, 250, 500, 1000, 2500, 5000, 10000, 30000};
+
+    /**
+     * A snapshot of the queue wait of the requests of one original priority taken so far.
+     * 某个原始优先级的request在队列中等待时间的分布
+     */
+    public static class WaitStats {
+        private final long mCount;
+        private final long mTotalMs;
+        private final long mMaxMs;
+        private final long[] mBucketCounts;
+
+        WaitStats(long count, long totalMs, long maxMs, long[] bucketCounts) {
+            mCount = count;
+            mTotalMs = totalMs;
+            mMaxMs = maxMs;
+            mBucketCounts = bucketCounts;
+        }
+
+        /** Returns the number of requests taken from the queue. */
+        public long getCount() {
+            return mCount;
+        }
+
+        /** Returns the summed queue wait of those requests. */
+        public long getTotalMs() {
+            return mTotalMs;
+        }
+
+        /** Returns the longest queue wait seen. */
+        public long getMaxMs() {
+            return mMaxMs;
+        }
+
+        /**
+         * Returns the number of requests per wait bucket. Bucket {@code i} counts waits up to
+         * {@code getBucketBoundsMs()[i]}; the last bucket counts everything above.
+         */
+        public long[] getBucketCounts() {
+            return mBucketCounts.clone();
+        }
+
+        /** Returns the upper bounds of all buckets but the last. */
+        public static long[] getBucketBoundsMs() {
+            return BUCKET_BOUNDS_MS.clone();
+        }
+    }
+
+    /** Where and since when a request waits. */
+    private static class Entry {
+        final int band;
+        final long enqueuedMs;
+
+        Entry(int band, long enqueuedMs) {
+            this.band = band;
+            this.enqueuedMs = enqueuedMs;
+        }
+    }
+
+    /** Queued time needed to rise by one priority step. */
+    private final long mAgingIntervalMs;
+
+    /** Guards all state below. */
+    private final ReentrantLock mLock = new ReentrantLock();
+
+    /** Signalled when a request is added. */
+    private final Condition mNotEmpty = mLock.newCondition();
+
+    /** Waiting requests per original priority, indexed by {@link Request.Priority#ordinal()}. */
+    private final List<PriorityQueue<Request<?>>> mBands;
+
+    /** Band and enqueue time of every waiting request. */
+    private final Map<Request<?>, Entry> mEntries = new IdentityHashMap<Request<?>, Entry>();
+
+    /** Per original priority: count, total wait, max wait, then one slot per bucket. */
+    private final long[][] mWaits;
+
+    /**
+     * @param agingIntervalMs Queued time after which a request is treated as one priority higher
+     */
+    public AgingPriorityBlockingQueue(long agingIntervalMs) {
+        if (agingIntervalMs <= 0) {
+            throw new IllegalArgumentException("agingIntervalMs must be positive");
+        }
+        mAgingIntervalMs = agingIntervalMs;
+        int bands = Request.Priority.values().length;
+        mBands = new ArrayList<PriorityQueue<Request<?>>>(bands);
+        for (int i = 0; i < bands; i++) {
+            mBands.add(new PriorityQueue<Request<?>>());
+        }
+        mWaits = new long[bands][3 + BUCKET_BOUNDS_MS.length + 1];
+    }
+
+    /**
+     * Returns the queue wait distribution of the requests of the given original priority.
+     */
+    public WaitStats getWaitStats(Request.Priority priority) {
+        mLock.lock();
+        try {
+            long[] waits = mWaits[priority.ordinal()];
+            long[] buckets = new long[BUCKET_BOUNDS_MS.length + 1];
+            System.arraycopy(waits, 3, buckets, 0, buckets.length);
+            return new WaitStats(waits[0], waits[1], waits[2], buckets);
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    @Override
+    public boolean offer(Request<?> request) {
+        if (request == null) {
+            throw new NullPointerException();
+        }
+        int band = request.getPriority().ordinal();
+        mLock.lock();
+        try {
+            mEntries.put(request, new Entry(band, SystemClock.elapsedRealtime()));
+            mBands.get(band).add(request);
+            mNotEmpty.signal();
+            return true;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    @Override
+    public void put(Request<?> request) {
+        offer(request);
+    }
+
+    @Override
+    public boolean offer(Request<?> request, long timeout, TimeUnit unit) {
+        return offer(request);
+    }
+
+    @Override
+    public Request<?> take() throws InterruptedException {
+        mLock.lockInterruptibly();
+        try {
+            Request<?> request;
+            while ((request = dequeue()) == null) {
+                mNotEmpty.await();
+            }
+            return request;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    @Override
+    public Request<?> poll(long timeout, TimeUnit unit) throws InterruptedException {
+        long nanos = unit.toNanos(timeout);
+        mLock.lockInterruptibly();
+        try {
+            Request<?> request;
+            while ((request = dequeue()) == null) {
+                if (nanos <= 0) {
+                    return null;
+                }
+                nanos = mNotEmpty.awaitNanos(nanos);
+            }
+            return request;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    @Override
+    public Request<?> poll() {
+        mLock.lock();
+        try {
+            return dequeue();
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    @Override
+    public Request<?> peek() {
+        mLock.lock();
+        try {
+            int band = selectBand(SystemClock.elapsedRealtime());
+            return band < 0 ? null : mBands.get(band).peek();
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * Returns the band whose head has the highest effective priority, or -1 if the queue is
+     * empty; caller holds the lock.
+     * 计算每个优先级队头的有效优先级，选出最高的那个；相同的时候等待时间长的优先
+     * 有效优先级不设上限，否则老化到IMMEDIATE的LOW请求还是会输给新来的IMMEDIATE请求
+     */
+    private int selectBand(long nowMs) {
+        int best = -1;
+        long bestScore = -1;
+        long bestEnqueuedMs = Long.MAX_VALUE;
+        for (int band = mBands.size() - 1; band >= 0; band--) {
+            Request<?> head = mBands.get(band).peek();
+            if (head == null) {
+                continue;
+            }
+            long enqueuedMs = mEntries.get(head).enqueuedMs;
+            long score = band + (nowMs - enqueuedMs) / mAgingIntervalMs;
+            if (score > bestScore || (score == bestScore && enqueuedMs < bestEnqueuedMs)) {
+                best = band;
+                bestScore = score;
+                bestEnqueuedMs = enqueuedMs;
+            }
+        }
+        return best;
+    }
+
+    /** Takes the next request and records its wait; caller holds the lock. */
+    private Request<?> dequeue() {
+        long nowMs = SystemClock.elapsedRealtime();
+        int band = selectBand(nowMs);
+        if (band < 0) {
+            return null;
+        }
+        Request<?> request = mBands.get(band).poll();
+        Entry entry = mEntries.remove(request);
+        recordWait(entry.band, nowMs - entry.enqueuedMs);
+        return request;
+    }
+
+    private void recordWait(int band, long waitMs) {
+        long[] waits = mWaits[band];
+        waits[0]++;
+        waits[1] += waitMs;
+        waits[2] = Math.max(waits[2], waitMs);
+        int bucket = 0;
+        while (bucket < BUCKET_BOUNDS_MS.length && waitMs > BUCKET_BOUNDS_MS[bucket]) {
+            bucket++;
+        }
+        waits[3 + bucket]++;
+    }
+
+    @Override
+    public boolean remove(Object o) {
+        mLock.lock();
+        try {
+            Entry entry = mEntries.remove(o);
+            if (entry == null) {
+                return false;
+            }
+            mBands.get(entry.band).remove(o);
+            return true;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    @Override
+    public int size() {
+        mLock.lock();
+        try {
+            return mEntries.size();
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    @Override
+    public int remainingCapacity() {
+        return Integer.MAX_VALUE;
+    }
+
+    /**
+     * Returns an iterator over a snapshot of the waiting requests, in no particular order.
+     */
+    @Override
+    public Iterator<Request<?>> iterator() {
+        List<Request<?>> snapshot;
+        mLock.lock();
+        try {
+            snapshot = new ArrayList<Request<?>>(mEntries.keySet());
+        } finally {
+            mLock.unlock();
+        }
+        final Iterator<Request<?>> it = snapshot.iterator();
+        return new Iterator<Request<?>>() {
+            private Request<?> mLast;
+
+            @Override
+            public boolean hasNext() {
+                return it.hasNext();
+            }
+
+            @Override
+            public Request<?> next() {
+                mLast = it.next();
+                return mLast;
+            }
+
+            @Override
+            public void remove() {
+                if (mLast == null) {
+                    throw new IllegalStateException();
+                }
+                AgingPriorityBlockingQueue.this.remove(mLast);
+                mLast = null;
+            }
+        };
+    }
+
+    @Override
+    public int drainTo(Collection<? super Request<?>> c) {
+        return drainTo(c, Integer.MAX_VALUE);
+    }
+
+    @Override
+    public int drainTo(Collection<? super Request<?>> c, int maxElements) {
+        if (c == this) {
+            throw new IllegalArgumentException();
+        }
+        mLock.lock();
+        try {
+            int n = 0;
+            Request<?> request;
+            while (n < maxElements && (request = dequeue()) != null) {
+                c.add(request);
+                n++;
+            }
+            return n;
+        } finally {
+            mLock.unlock();
+        }
+    }
+}
@@ -0,0 +1,58 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley;
+
+/**
+ * An interface for performing requests without blocking the calling thread.
+ * 异步发送请求的接口，调用之后立刻返回，结果通过回调交付
+ *
+ * <p>{@link com.android.volley.toolbox.ExecutorAsyncNetwork} runs a blocking {@link Network},
+ * such as the default HurlStack-based one, behind this interface.</p>
+ *
+ * @see AsyncNetworkDispatcher
+ * @see com.android.volley.toolbox.ExecutorAsyncNetwork
+ * @see com.android.volley.toolbox.BatchingNetwork
+ */
+public interface AsyncNetwork {
+
+    /**
+     * Callback for the outcome of {@link #performRequest(Request, OnRequestComplete)}.
+     */
+    public interface OnRequestComplete {
+        /**
+         * Called once with the response; may block, since the response is parsed and written
+         * to the cache on the calling thread.
+         *
+         * @param networkResponse A response with data and caching metadata; never null
+         */
+        public void onSuccess(NetworkResponse networkResponse);
+
+        /**
+         * Called once if the request failed; may block like {@link #onSuccess}.
+         */
+        public void onError(VolleyError error);
+    }
+
+    /**
+     * Starts performing the specified request and returns right away. Exactly one method of the
+     * callback is called, on a thread that is allowed to block.
+     *
+     * @param request Request to process
+     * @param callback Receives the response or error
+     */
+    public void performRequest(Request<?> request, OnRequestComplete callback);
+}
@@ -0,0 +1,137 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley;
+
+import android.os.Process;
+import android.os.SystemClock;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Semaphore;
+
+/**
+ * A network dispatcher that starts requests on an {@link AsyncNetwork} and keeps up to
+ * {@code maxConcurrentRequests} of them in flight from a single thread.
+ * 异步网络调度线程：只有一个线程负责从队列里面取request并发起异步请求
+ * 同时在处理的请求数量只受maxConcurrentRequests限制，不受线程数量限制
+ *
+ * <p>Like {@link ExecutorNetworkDispatcher}, a request is only taken once a permit is free, so
+ * requests still start in {@link Request#compareTo(Request)} order. Responses are parsed,
+ * cached and posted on the thread the {@link AsyncNetwork} calls back on.</p>
+ */
+public class AsyncNetworkDispatcher extends NetworkDispatcher {
+
+    /** The queue of requests to service. */
+    private final BlockingQueue<Request<?>> mQueue;
+
+    /** The network the requests are started on. */
+    private final AsyncNetwork mAsyncNetwork;
+
+    /** One permit per request allowed in flight. */
+    private final Semaphore mPermits;
+
+    /**
+     * Creates a new asynchronous network dispatcher thread. You must call {@link #start()}
+     * in order to begin processing.
+     *
+     * @param queue Queue of incoming requests for triage
+     * @param network Network interface to use for starting requests
+     * @param cache Cache interface to use for writing responses to cache
+     * @param delivery Delivery interface to use for posting responses
+     * @param maxConcurrentRequests Upper bound on the number of requests in flight
+     */
+    public AsyncNetworkDispatcher(BlockingQueue<Request<?>> queue, AsyncNetwork network,
+            Cache cache, ResponseDelivery delivery, int maxConcurrentRequests) {
+        super(queue, null, cache, delivery);
+        if (maxConcurrentRequests < 1) {
+            throw new IllegalArgumentException("maxConcurrentRequests must be at least 1");
+        }
+        mQueue = queue;
+        mAsyncNetwork = network;
+        mPermits = new Semaphore(maxConcurrentRequests);
+    }
+
+    @Override
+    public void run() {
+        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+
+        while (true) {
+            long startTimeMs = SystemClock.elapsedRealtime();
+            Request<?> request;
+            try {
+                // Wait for a free slot first so that the request we take is the highest
+                // priority one at the time it can actually start.
+                mPermits.acquire();
+                try {
+                    request = mQueue.take();
+                } catch (InterruptedException e) {
+                    mPermits.release();
+                    throw e;
+                }
+            } catch (InterruptedException e) {
+                // We may have been interrupted because it was time to quit.
+                if (hasQuit()) {
+                    return;
+                }
+                continue;
+            }
+            processRequest(request, startTimeMs);
+        }
+    }
+
+    /**
+     * Starts the given request on the asynchronous network; the permit taken for it is released
+     * once its outcome has been handled.
+     */
+    @Override
+    void processRequest(final Request<?> request, final long startTimeMs) {
+        boolean started = false;
+        try {
+            if (!prepareRequest(request, startTimeMs)) {
+                return;
+            }
+            mAsyncNetwork.performRequest(request, new AsyncNetwork.OnRequestComplete() {
+                @Override
+                public void onSuccess(NetworkResponse networkResponse) {
+                    try {
+                        handleNetworkResponse(request, networkResponse, startTimeMs);
+                    } finally {
+                        mPermits.release();
+                    }
+                }
+
+                @Override
+                public void onError(VolleyError error) {
+                    try {
+                        handleNetworkError(request, error, startTimeMs);
+                    } finally {
+                        mPermits.release();
+                    }
+                }
+            });
+            started = true;
+        } catch (Exception e) {
+            // The network refused to start the request, for example a rejecting executor.
+            request.addMarker("network-async-rejected");
+            VolleyError volleyError = new VolleyError(e);
+            handleNetworkError(request, volleyError, startTimeMs);
+        } finally {
+            if (!started) {
+                mPermits.release();
+            }
+        }
+    }
+}
@@ -82,6 +82,37 @@ public class CacheDispatcher extends Thread {
      */
     private volatile boolean mQuit = false;
 
+    /**
+     * Runs {@link Cache#initialize()} once for every dispatcher sharing it.
+     * 多个CacheDispatcher共用一个缓存的时候，保证initialize()只执行一次
+     */
+    private final CacheInitializer mCacheInitializer;
+
+    /** The elastic pool serving the network queue, told about every request put on it; or null. */
+    private final NetworkDispatcherPool mPool;
+
+    /**
+     * Makes sure {@link Cache#initialize()} runs exactly once before any of the cache dispatchers
+     * sharing this object serves a request.
+     * 第一个调用ensureInitialized()的dispatcher负责初始化缓存，其他的dispatcher在这里等待初始化完成
+     */
+    static class CacheInitializer {
+        private final Cache mCache;
+        private boolean mInitialized = false;
+
+        CacheInitializer(Cache cache) {
+            mCache = cache;
+        }
+
+        /** Blocks until the cache has been initialized by this or another dispatcher. */
+        synchronized void ensureInitialized() {
+            if (!mInitialized) {
+                mCache.initialize();
+                mInitialized = true;
+            }
+        }
+    }
+
     /**
      * Creates a new cache triage dispatcher thread.  You must call {@link #start()}
      * in order to begin processing.
@@ -100,10 +131,24 @@ public class CacheDispatcher extends Thread {
     public CacheDispatcher(
             BlockingQueue<Request<?>> cacheQueue, BlockingQueue<Request<?>> networkQueue,
             Cache cache, ResponseDelivery delivery) {
+        this(cacheQueue, networkQueue, cache, delivery, new CacheInitializer(cache), null);
+    }
+
+    /**
+     * Creates a new cache triage dispatcher thread that shares cache initialization with the
+     * other dispatchers given the same initializer, and tells {@code pool}, if not null, about
+     * the requests it sends to the network.
+     */
+    CacheDispatcher(
+            BlockingQueue<Request<?>> cacheQueue, BlockingQueue<Request<?>> networkQueue,
+            Cache cache, ResponseDelivery delivery, CacheInitializer cacheInitializer,
+            NetworkDispatcherPool pool) {
         mCacheQueue = cacheQueue;
         mNetworkQueue = networkQueue;
         mCache = cache;
         mDelivery = delivery;
+        mCacheInitializer = cacheInitializer;
+        mPool = pool;
     }
 
     /**
@@ -137,8 +182,9 @@ public class CacheDispatcher extends Thread {
          * Make a blocking call to initialize the cache.
          * 在读写缓存之前做一些初始化工作，例如扫描缓存目录是否存在等
          * 这个暂时先不用管里面的内容，等介绍到Cache.java的时候就会明白
+         * 有多个CacheDispatcher的时候只有第一个会真正执行初始化，其他的在这里等待
          */
-        mCache.initialize();
+        mCacheInitializer.ensureInitialized();
 
 
         /**
@@ -180,6 +226,15 @@ public class CacheDispatcher extends Thread {
                     continue;
                 }
 
+                /**
+                 * 已经过了截止时间的request直接返回TimeoutError，不用再读缓存了
+                 */
+                if (request.isPastDeadline()) {
+                    request.addMarker("cache-discard-deadline");
+                    mDelivery.postError(request, new TimeoutError());
+                    continue;
+                }
+
                 /**
                  * 在这里NetworkDispatcher和CacheDispatcher出现了一点差异
                  * NetworkDispatcher.java在这一步就直接开始网络请求了
@@ -195,7 +250,7 @@ public class CacheDispatcher extends Thread {
                 if (entry == null) {
                     request.addMarker("cache-miss");
                     // Cache miss; send off to the network dispatcher.
-                    mNetworkQueue.put(request);
+                    sendToNetwork(request);
                     continue;
                 }
 
@@ -212,7 +267,7 @@ public class CacheDispatcher extends Thread {
                 if (entry.isExpired()) {
                     request.addMarker("cache-hit-expired");
                     request.setCacheEntry(entry);
-                    mNetworkQueue.put(request);
+                    sendToNetwork(request);
                     continue;
                 }
 
@@ -234,8 +289,9 @@ public class CacheDispatcher extends Thread {
                  * 通过{#link Request#parseNetworkResponse()}方法
                  * 来解析成一个Response.java对象
                  */
-                Response<?> response = request.parseNetworkResponse(
-                        new NetworkResponse(entry.data, entry.responseHeaders));
+                NetworkResponse networkResponse =
+                        new NetworkResponse(entry.data, entry.responseHeaders);
+                Response<?> response = request.parseNetworkResponse(networkResponse);
 
                 //为了方便debug，对request每一个时期的状态都需要添加不同的log信息
                 request.addMarker("cache-hit-parsed");
@@ -246,6 +302,9 @@ public class CacheDispatcher extends Thread {
                      * 如果缓存不需要刷新的话，直接传回给caller
                      */
                     mDelivery.postResponse(request, response);
+
+                    // Serve duplicates parked on this cache key from the same parse.
+                    request.notifyResponseReceived(networkResponse, response);
                 } else {
                     // Soft-expired cache hit. We can deliver the cached response,
                     // but we need to also send the request to the network for
@@ -277,7 +336,7 @@ public class CacheDispatcher extends Thread {
                         public void run() {
                             try {
                                 //将request加入到网络请求队列中去
-                                mNetworkQueue.put(request);
+                                sendToNetwork(request);
                             } catch (InterruptedException e) {
                                 // Not much we can do about this.
                             }
@@ -295,4 +354,12 @@ public class CacheDispatcher extends Thread {
             }
         }
     }
+
+    /** Puts a request on the network queue and tells the elastic pool, if any, about it. */
+    private void sendToNetwork(Request<?> request) throws InterruptedException {
+        mNetworkQueue.put(request);
+        if (mPool != null) {
+            mPool.onRequestQueued();
+        }
+    }
 }
@@ -0,0 +1,41 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley;
+
+/**
+ * Default hedging policy for requests: a fixed delay.
+ */
+public class DefaultHedgingPolicy implements HedgingPolicy {
+
+    /** How long the first attempt may take before a second one is sent. */
+    private final long mHedgeDelayMs;
+
+    /**
+     * @param hedgeDelayMs How long the first attempt may take before a second one is sent
+     */
+    public DefaultHedgingPolicy(long hedgeDelayMs) {
+        if (hedgeDelayMs < 0) {
+            throw new IllegalArgumentException("hedgeDelayMs must not be negative");
+        }
+        mHedgeDelayMs = hedgeDelayMs;
+    }
+
+    @Override
+    public long getHedgeDelayMs() {
+        return mHedgeDelayMs;
+    }
+}
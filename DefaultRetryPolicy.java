@@ -77,6 +77,17 @@ public class DefaultRetryPolicy implements RetryPolicy {
         mBackoffMultiplier = backoffMultiplier;
     }
 
+    /**
+     * Constructs a retry policy in the same state as another, that changes independently of it.
+     * 复制一份当前的状态(超时时间和已经重试的次数)，之后两份各改各的
+     */
+    public DefaultRetryPolicy(DefaultRetryPolicy other) {
+        mCurrentTimeoutMs = other.mCurrentTimeoutMs;
+        mCurrentRetryCount = other.mCurrentRetryCount;
+        mMaxNumRetries = other.mMaxNumRetries;
+        mBackoffMultiplier = other.mBackoffMultiplier;
+    }
+
     /**
      * Returns the current timeout.
      */
@@ -0,0 +1,123 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley;
+
+import android.os.Process;
+import android.os.SystemClock;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+
+/**
+ * A network dispatcher that hands every request taken from the queue to an {@link Executor}
+ * instead of performing it on its own thread.
+ * 这个dispatcher自己不做网络请求，只负责从队列里面取request，然后交给Executor去执行
+ *
+ * <p>The dispatcher thread only takes a request once one of {@code maxConcurrentRequests}
+ * permits is free, so the request handed out is always the head of the priority queue at that
+ * moment and {@link Request#compareTo(Request)} order is kept. Pass an executor that starts a
+ * cheap thread per task (for example a virtual-thread-per-task executor where the runtime has
+ * one) to keep hundreds of slow requests in flight without as many OS threads.</p>
+ * 先拿到许可再取request，保证每次取出来的都是当时优先级最高的那个
+ */
+public class ExecutorNetworkDispatcher extends NetworkDispatcher {
+
+    /** The queue of requests to service. */
+    private final BlockingQueue<Request<?>> mQueue;
+
+    /** For posting errors when the executor refuses a request. */
+    private final ResponseDelivery mDelivery;
+
+    /** Runs the requests. */
+    private final Executor mExecutor;
+
+    /** One permit per request allowed in flight. */
+    private final Semaphore mPermits;
+
+    /**
+     * Creates a new executor-backed network dispatcher thread. You must call {@link #start()}
+     * in order to begin processing.
+     *
+     * @param queue Queue of incoming requests for triage
+     * @param network Network interface to use for performing requests
+     * @param cache Cache interface to use for writing responses to cache
+     * @param delivery Delivery interface to use for posting responses
+     * @param executor Executor every request is performed on
+     * @param maxConcurrentRequests Upper bound on the number of requests in flight
+     */
+    public ExecutorNetworkDispatcher(BlockingQueue<Request<?>> queue, Network network,
+            Cache cache, ResponseDelivery delivery, Executor executor,
+            int maxConcurrentRequests) {
+        super(queue, network, cache, delivery);
+        if (maxConcurrentRequests < 1) {
+            throw new IllegalArgumentException("maxConcurrentRequests must be at least 1");
+        }
+        mQueue = queue;
+        mDelivery = delivery;
+        mExecutor = executor;
+        mPermits = new Semaphore(maxConcurrentRequests);
+    }
+
+    @Override
+    public void run() {
+        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+
+        while (true) {
+            final long startTimeMs = SystemClock.elapsedRealtime();
+            final Request<?> request;
+            try {
+                // Wait for a free slot first so that the request we take is the highest
+                // priority one at the time it can actually run.
+                mPermits.acquire();
+                try {
+                    request = mQueue.take();
+                } catch (InterruptedException e) {
+                    mPermits.release();
+                    throw e;
+                }
+            } catch (InterruptedException e) {
+                // We may have been interrupted because it was time to quit.
+                if (hasQuit()) {
+                    return;
+                }
+                continue;
+            }
+
+            try {
+                mExecutor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            processRequest(request, startTimeMs);
+                        } finally {
+                            mPermits.release();
+                        }
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                mPermits.release();
+                VolleyLog.e(e, "Executor rejected %s", request);
+                VolleyError volleyError = new VolleyError(e);
+                volleyError.setNetworkTimeMs(SystemClock.elapsedRealtime() - startTimeMs);
+                request.addMarker("network-executor-rejected");
+                mDelivery.postError(request, volleyError);
+            }
+        }
+    }
+}
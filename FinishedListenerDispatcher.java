@@ -0,0 +1,139 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley;
+
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs {@link RequestQueue.RequestFinishedListener}s on an executor, so that the thread
+ * finishing a request does not wait for them.
+ * 在Executor上面通知RequestFinishedListener，finish()只需要把request放进环形缓冲区就可以返回
+ *
+ * <p>Finished requests go into a fixed-size ring buffer that a single task drains on the
+ * executor, so listeners still see requests one at a time and in finishing order. When the
+ * buffer is full the notification is dropped and counted rather than blocking the finishing
+ * thread.</p>
+ */
+class FinishedListenerDispatcher implements Runnable {
+
+    private final Executor mExecutor;
+
+    /** The listeners to notify; a copy-on-write list owned by the queue. */
+    @SuppressWarnings("rawtypes")
+    private final List<RequestQueue.RequestFinishedListener> mListeners;
+
+    /** Ring buffer of finished requests; guarded by this. */
+    private final Request<?>[] mRing;
+    private int mHead = 0;
+    private int mCount = 0;
+
+    /** Whether a drain task is scheduled or running; guarded by this. */
+    private boolean mDraining = false;
+
+    private final AtomicInteger mDroppedCount = new AtomicInteger();
+
+    @SuppressWarnings("rawtypes")
+    FinishedListenerDispatcher(Executor executor,
+            List<RequestQueue.RequestFinishedListener> listeners, int bufferSize) {
+        if (bufferSize < 1) {
+            throw new IllegalArgumentException("bufferSize must be at least 1");
+        }
+        mExecutor = executor;
+        mListeners = listeners;
+        mRing = new Request<?>[bufferSize];
+    }
+
+    /**
+     * Queues a notification for the given request; never blocks.
+     */
+    void dispatch(Request<?> request) {
+        synchronized (this) {
+            if (mCount == mRing.length) {
+                mDroppedCount.incrementAndGet();
+                return;
+            }
+            mRing[(mHead + mCount) % mRing.length] = request;
+            mCount++;
+            if (mDraining) {
+                return;
+            }
+            mDraining = true;
+        }
+        try {
+            mExecutor.execute(this);
+        } catch (RejectedExecutionException e) {
+            // Nothing will drain the buffer; run the listeners here instead of losing them.
+            run();
+        }
+    }
+
+    /** Returns the number of notifications dropped because the buffer was full. */
+    int getDroppedCount() {
+        return mDroppedCount.get();
+    }
+
+    /**
+     * Notifies the given listeners of a finished request on the calling thread. What a listener
+     * throws reaches the caller, as it did before listeners could run on an executor.
+     */
+    // The lists hold listeners of every request type; each gets the request it was added for.
+    @SuppressWarnings({"rawtypes", "unchecked"})
+    static void notifyListeners(List<RequestQueue.RequestFinishedListener> listeners,
+            Request<?> request) {
+        for (RequestQueue.RequestFinishedListener listener : listeners) {
+            listener.onRequestFinished(request);
+        }
+    }
+
+    /**
+     * Notifies the listeners from the drain task, logging what a listener throws: there is no
+     * caller to report it to, and it must not stop the notifications queued behind it.
+     * 在Executor上面通知的时候没有调用者可以接收异常，只能记录日志，继续通知后面的
+     */
+    @SuppressWarnings("unchecked")
+    private void notifyListenersLogging(Request<?> request) {
+        for (@SuppressWarnings("rawtypes") RequestQueue.RequestFinishedListener listener
+                : mListeners) {
+            try {
+                listener.onRequestFinished(request);
+            } catch (RuntimeException e) {
+                VolleyLog.e(e, "RequestFinishedListener threw for %s", request);
+            }
+        }
+    }
+
+    @Override
+    public void run() {
+        while (true) {
+            Request<?> request;
+            synchronized (this) {
+                if (mCount == 0) {
+                    mDraining = false;
+                    return;
+                }
+                request = mRing[mHead];
+                mRing[mHead] = null;
+                mHead = (mHead + 1) % mRing.length;
+                mCount--;
+            }
+            notifyListenersLogging(request);
+        }
+    }
+}
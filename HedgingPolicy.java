@@ -0,0 +1,33 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley;
+
+/**
+ * Hedging policy for a request.
+ * 请求的对冲策略：第一次请求在一定时间内没有返回的话，再发一个相同的请求，谁先返回就用谁的结果
+ * 和RetryPolicy不同，RetryPolicy要等超时真的发生了才会重试
+ *
+ * @see com.android.volley.toolbox.HedgingNetwork
+ */
+public interface HedgingPolicy {
+
+    /**
+     * Returns how long to wait for the first attempt before sending a second one, for example
+     * the observed 95th percentile latency of the endpoint.
+     */
+    public long getHedgeDelayMs();
+}
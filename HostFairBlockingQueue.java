@@ -0,0 +1,400 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley;
+
+import android.net.Uri;
+import android.text.TextUtils;
+
+import java.util.AbstractQueue;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A network queue that limits the number of requests in flight per host and takes turns
+ * between hosts that have requests waiting at the same {@link Request.Priority}.
+ * 按照host来调度的网络请求队列
+ * 每个host同时在处理的request数量有上限，同一个优先级下面不同的host轮流出队
+ * 这样一个很慢的host不会占满所有的NetworkDispatcher，拖慢其他host的请求
+ *
+ * <p>Higher priorities are still served first, but a request whose host is at its limit does
+ * not block requests to other hosts, even of a lower priority. Within one host, requests keep
+ * {@link Request#compareTo(Request)} order. A request counts as in flight from the moment it
+ * is taken until it finishes; this queue must therefore be registered as a
+ * {@link RequestQueue.RequestFinishedListener}, which
+ * {@link RequestQueue#setMaxRequestsPerHost(int)} does.</p>
+ */
+public class HostFairBlockingQueue extends AbstractQueue<Request<?>>
+        implements BlockingQueue<Request<?>>, RequestQueue.RequestFinishedListener<Object> {
+
+    /** Upper bound on the requests in flight for one host. */
+    private final int mMaxRequestsPerHost;
+
+    /** Guards all state below. */
+    private final ReentrantLock mLock = new ReentrantLock();
+
+    /** Signalled when a request is added or a host slot is released. */
+    private final Condition mTakeable = mLock.newCondition();
+
+    /**
+     * Waiting requests, per priority band (indexed by {@link Request.Priority#ordinal()}) and
+     * per host.
+     * 每个优先级一个Map，key是host，value是这个host下面等待中的request
+     */
+    private final List<Map<String, PriorityQueue<Request<?>>>> mWaiting;
+
+    /**
+     * Hosts with waiting requests, per priority band, in the order they get their next turn.
+     * 每个优先级下面有request在等待的host，按照轮转的顺序排列
+     */
+    private final List<ArrayDeque<String>> mTurns;
+
+    /** Number of requests in flight per host. */
+    private final Map<String, Integer> mInFlight = new HashMap<String, Integer>();
+
+    /** Requests handed out by this queue that have not finished yet, with their host. */
+    private final Map<Request<?>, String> mHandedOut = new IdentityHashMap<Request<?>, String>();
+
+    /** Number of waiting requests. */
+    private int mCount = 0;
+
+    /**
+     * @param maxRequestsPerHost Upper bound on the requests in flight for one host
+     */
+    public HostFairBlockingQueue(int maxRequestsPerHost) {
+        if (maxRequestsPerHost < 1) {
+            throw new IllegalArgumentException("maxRequestsPerHost must be at least 1");
+        }
+        mMaxRequestsPerHost = maxRequestsPerHost;
+        int bands = Request.Priority.values().length;
+        mWaiting = new ArrayList<Map<String, PriorityQueue<Request<?>>>>(bands);
+        mTurns = new ArrayList<ArrayDeque<String>>(bands);
+        for (int i = 0; i < bands; i++) {
+            mWaiting.add(new HashMap<String, PriorityQueue<Request<?>>>());
+            mTurns.add(new ArrayDeque<String>());
+        }
+    }
+
+    /**
+     * Returns the host a request is scheduled under; the empty string if the URL has none.
+     */
+    static String hostOf(Request<?> request) {
+        String url = request.getUrl();
+        if (!TextUtils.isEmpty(url)) {
+            String host = Uri.parse(url).getHost();
+            if (host != null) {
+                return host;
+            }
+        }
+        return "";
+    }
+
+    /**
+     * Returns the number of requests currently in flight for the given host.
+     */
+    public int getInFlightCount(String host) {
+        mLock.lock();
+        try {
+            Integer count = mInFlight.get(host);
+            return count == null ? 0 : count;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * Releases the host slot held by a request handed out by this queue. Requests that never
+     * left this queue are ignored.
+     * request结束之后释放它所在host的名额
+     */
+    @Override
+    public void onRequestFinished(Request<Object> request) {
+        mLock.lock();
+        try {
+            String host = mHandedOut.remove(request);
+            if (host == null) {
+                return;
+            }
+            int count = mInFlight.get(host) - 1;
+            if (count == 0) {
+                mInFlight.remove(host);
+            } else {
+                mInFlight.put(host, count);
+            }
+            mTakeable.signal();
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    @Override
+    public boolean offer(Request<?> request) {
+        if (request == null) {
+            throw new NullPointerException();
+        }
+        String host = hostOf(request);
+        int band = request.getPriority().ordinal();
+        mLock.lock();
+        try {
+            Map<String, PriorityQueue<Request<?>>> hosts = mWaiting.get(band);
+            PriorityQueue<Request<?>> queue = hosts.get(host);
+            if (queue == null) {
+                queue = new PriorityQueue<Request<?>>();
+                hosts.put(host, queue);
+                mTurns.get(band).add(host);
+            }
+            queue.add(request);
+            mCount++;
+            mTakeable.signal();
+            return true;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    @Override
+    public void put(Request<?> request) {
+        offer(request);
+    }
+
+    @Override
+    public boolean offer(Request<?> request, long timeout, TimeUnit unit) {
+        return offer(request);
+    }
+
+    @Override
+    public Request<?> take() throws InterruptedException {
+        mLock.lockInterruptibly();
+        try {
+            Request<?> request;
+            while ((request = dequeue()) == null) {
+                mTakeable.await();
+            }
+            return request;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    @Override
+    public Request<?> poll(long timeout, TimeUnit unit) throws InterruptedException {
+        long nanos = unit.toNanos(timeout);
+        mLock.lockInterruptibly();
+        try {
+            Request<?> request;
+            while ((request = dequeue()) == null) {
+                if (nanos <= 0) {
+                    return null;
+                }
+                nanos = mTakeable.awaitNanos(nanos);
+            }
+            return request;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    @Override
+    public Request<?> poll() {
+        mLock.lock();
+        try {
+            return dequeue();
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * Returns the request the next {@link #poll()} would hand out, or null if every host with
+     * waiting requests is at its limit.
+     */
+    @Override
+    public Request<?> peek() {
+        mLock.lock();
+        try {
+            for (int band = mTurns.size() - 1; band >= 0; band--) {
+                for (String host : mTurns.get(band)) {
+                    if (hasFreeSlot(host)) {
+                        return mWaiting.get(band).get(host).peek();
+                    }
+                }
+            }
+            return null;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * Hands out the head of the first host, in turn order, of the highest priority band that
+     * has a host below its limit; caller holds the lock.
+     * 从最高的优先级开始，按照轮转顺序找到第一个还有名额的host，取出它的第一个request
+     * 被取出request的host排到这个优先级的队尾，等下一轮
+     */
+    private Request<?> dequeue() {
+        for (int band = mTurns.size() - 1; band >= 0; band--) {
+            ArrayDeque<String> turns = mTurns.get(band);
+            for (int i = turns.size(); i > 0; i--) {
+                String host = turns.poll();
+                if (!hasFreeSlot(host)) {
+                    turns.add(host);
+                    continue;
+                }
+                Map<String, PriorityQueue<Request<?>>> hosts = mWaiting.get(band);
+                PriorityQueue<Request<?>> queue = hosts.get(host);
+                Request<?> request = queue.poll();
+                if (queue.isEmpty()) {
+                    hosts.remove(host);
+                } else {
+                    turns.add(host);
+                }
+                mCount--;
+                Integer count = mInFlight.get(host);
+                mInFlight.put(host, count == null ? 1 : count + 1);
+                mHandedOut.put(request, host);
+                return request;
+            }
+        }
+        return null;
+    }
+
+    private boolean hasFreeSlot(String host) {
+        Integer count = mInFlight.get(host);
+        return count == null || count < mMaxRequestsPerHost;
+    }
+
+    @Override
+    public boolean remove(Object o) {
+        if (!(o instanceof Request)) {
+            return false;
+        }
+        Request<?> request = (Request<?>) o;
+        String host = hostOf(request);
+        int band = request.getPriority().ordinal();
+        mLock.lock();
+        try {
+            Map<String, PriorityQueue<Request<?>>> hosts = mWaiting.get(band);
+            PriorityQueue<Request<?>> queue = hosts.get(host);
+            if (queue == null || !queue.remove(request)) {
+                return false;
+            }
+            if (queue.isEmpty()) {
+                hosts.remove(host);
+                mTurns.get(band).remove(host);
+            }
+            mCount--;
+            return true;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    @Override
+    public int size() {
+        mLock.lock();
+        try {
+            return mCount;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    @Override
+    public int remainingCapacity() {
+        return Integer.MAX_VALUE;
+    }
+
+    /**
+     * Returns an iterator over a snapshot of the waiting requests, in no particular order.
+     */
+    @Override
+    public Iterator<Request<?>> iterator() {
+        List<Request<?>> snapshot = new ArrayList<Request<?>>();
+        mLock.lock();
+        try {
+            for (Map<String, PriorityQueue<Request<?>>> hosts : mWaiting) {
+                for (PriorityQueue<Request<?>> queue : hosts.values()) {
+                    snapshot.addAll(queue);
+                }
+            }
+        } finally {
+            mLock.unlock();
+        }
+        final Iterator<Request<?>> it = snapshot.iterator();
+        return new Iterator<Request<?>>() {
+            private Request<?> mLast;
+
+            @Override
+            public boolean hasNext() {
+                return it.hasNext();
+            }
+
+            @Override
+            public Request<?> next() {
+                mLast = it.next();
+                return mLast;
+            }
+
+            @Override
+            public void remove() {
+                if (mLast == null) {
+                    throw new IllegalStateException();
+                }
+                HostFairBlockingQueue.this.remove(mLast);
+                mLast = null;
+            }
+        };
+    }
+
+    @Override
+    public int drainTo(Collection<? super Request<?>> c) {
+        return drainTo(c, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Moves requests that are eligible to run right now into the given collection; they count
+     * as in flight like any other request taken from this queue.
+     */
+    @Override
+    public int drainTo(Collection<? super Request<?>> c, int maxElements) {
+        if (c == this) {
+            throw new IllegalArgumentException();
+        }
+        mLock.lock();
+        try {
+            int n = 0;
+            Request<?> request;
+            while (n < maxElements && (request = dequeue()) != null) {
+                c.add(request);
+                n++;
+            }
+            return n;
+        } finally {
+            mLock.unlock();
+        }
+    }
+}
@@ -23,6 +23,7 @@ import android.os.Process;
 import android.os.SystemClock;
 
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Provides a thread for performing network dispatch from a queue of requests.
@@ -73,6 +74,12 @@ public class NetworkDispatcher extends Thread {
      */
     private volatile boolean mQuit = false;
 
+    /**
+     * The elastic pool this dispatcher belongs to, or null for a fixed-size dispatcher.
+     * 如果这个dispatcher是由弹性线程池创建的，这里指向那个线程池，否则为null
+     */
+    private final NetworkDispatcherPool mPool;
+
     /**
      * Creates a new network dispatcher thread.  You must call {@link #start()}
      * in order to begin processing.
@@ -87,10 +94,22 @@ public class NetworkDispatcher extends Thread {
     public NetworkDispatcher(BlockingQueue<Request<?>> queue,
             Network network, Cache cache,
             ResponseDelivery delivery) {
+        this(queue, network, cache, delivery, null);
+    }
+
+    /**
+     * Creates a new network dispatcher thread that is owned by the given pool.
+     *
+     * @param pool The pool that sizes this dispatcher, or null for a fixed-size dispatcher
+     */
+    NetworkDispatcher(BlockingQueue<Request<?>> queue,
+            Network network, Cache cache,
+            ResponseDelivery delivery, NetworkDispatcherPool pool) {
         mQueue = queue;
         mNetwork = network;
         mCache = cache;
         mDelivery = delivery;
+        mPool = pool;
     }
 
     /**
@@ -104,6 +123,13 @@ public class NetworkDispatcher extends Thread {
         interrupt();
     }
 
+    /**
+     * Returns true once {@link #quit()} has been called.
+     */
+    boolean hasQuit() {
+        return mQuit;
+    }
+
     /**
      * 这里涉及到了TrafficStats类，官方解释如下：
      * Class that provides network traffic statistics. 
@@ -169,7 +195,7 @@ public class NetworkDispatcher extends Thread {
              */
             try {
                 // Take a request from the queue.
-                request = mQueue.take();
+                request = takeRequest();
             } catch (InterruptedException e) {
                 // We may have been interrupted because it was time to quit.
                 if (mQuit) {
@@ -178,94 +204,195 @@ public class NetworkDispatcher extends Thread {
                 continue;
             }
 
+            // An idle dispatcher was retired by its pool.
+            if (request == null) {
+                return;
+            }
+
+            if (mPool != null) {
+                mPool.onDispatcherBusy();
+            }
+            try {
+                processRequest(request, startTimeMs);
+            } finally {
+                if (mPool != null) {
+                    mPool.onDispatcherIdle();
+                }
+            }
+        }
+    }
+
+    /**
+     * Takes the next request off the queue. Dispatchers owned by a
+     * {@link NetworkDispatcherPool} only wait for the pool's keep-alive time and then ask the
+     * pool whether they may exit.
+     * 固定线程数的dispatcher会一直阻塞在take()上面
+     * 弹性线程池里面的dispatcher最多等待keep-alive这么长的时间，空闲太久的就可以退出了
+     *
+     * @return The next request, or null if this dispatcher has been retired
+     */
+    private Request<?> takeRequest() throws InterruptedException {
+        if (mPool == null) {
+            return mQueue.take();
+        }
+        while (true) {
+            Request<?> request = mQueue.poll(mPool.getKeepAliveMs(), TimeUnit.MILLISECONDS);
+            if (request != null || mPool.retireIfIdle(this)) {
+                return request;
+            }
+        }
+    }
+
+    /**
+     * Performs the given request against the network and posts its result.
+     * 对从队列中取出的request进行处理：发送网络请求，解析，写缓存，交付结果
+     *
+     * @param request The request taken from the queue
+     * @param startTimeMs Time at which the dispatcher started waiting for this request
+     */
+    void processRequest(Request<?> request, long startTimeMs) {
+        /**
+         * 到这一步的时候，request应该是指向了一个Request
+         * 下面开始向服务器发送这个Request
+         */
+
+        try {
+            if (!prepareRequest(request, startTimeMs)) {
+                return;
+            }
+
+            addTrafficStatsTag(request);
+
             /**
-             * 到这一步的时候，request应该是指向了一个Request
-             * 下面开始向服务器发送这个Request
+             * Perform the network request.
+             * 直接调用mNetwork的接口，发送request并获得NetworkResponse
              */
+            NetworkResponse networkResponse = mNetwork.performRequest(request);
+            handleNetworkResponse(request, networkResponse, startTimeMs);
 
-            try {
-                request.addMarker("network-queue-take");
+        } catch (VolleyError volleyError) {
+            handleNetworkError(request, volleyError, startTimeMs);
 
-                // If the request was cancelled already, do not perform the
-                // network request.
-                if (request.isCanceled()) {
-                    request.finish("network-discard-cancelled");
-                    continue;
-                }
+        } catch (Exception e) {
+            handleUnexpectedError(request, e, startTimeMs);
+        }
+    }
 
-                addTrafficStatsTag(request);
+    /**
+     * Checks whether a request taken from the queue still needs to go to the network, and
+     * finishes or fails it if not.
+     * 检查request是否还需要发送网络请求，已经取消或者超过deadline的就直接结束
+     *
+     * @return true if the request should be performed
+     */
+    boolean prepareRequest(Request<?> request, long startTimeMs) {
+        request.addMarker("network-queue-take");
+
+        // If the request was cancelled already, do not perform the
+        // network request.
+        if (request.isCanceled()) {
+            request.finish("network-discard-cancelled");
+            return false;
+        }
 
-                /**
-                 * Perform the network request.
-                 * 直接调用mNetwork的接口，发送request并获得NetworkResponse
-                 */
-                NetworkResponse networkResponse = mNetwork.performRequest(request);
-                request.addMarker("network-http-complete");
+        // If the request is past its deadline, its caller no longer wants the result;
+        // don't spend network I/O on it.
+        if (request.isPastDeadline()) {
+            request.addMarker("network-discard-deadline");
+            TimeoutError timeoutError = new TimeoutError();
+            timeoutError.setNetworkTimeMs(SystemClock.elapsedRealtime() - startTimeMs);
+            mDelivery.postError(request, timeoutError);
+            return false;
+        }
+        return true;
+    }
 
-                // If the server returned 304 AND we delivered a response already,
-                // we're done -- don't deliver a second identical response.
-                if (networkResponse.notModified && request.hasHadResponseDelivered()) {
-                    request.finish("not-modified");
-                    continue;
-                }
+    /**
+     * Parses a response received from the network, writes it to the cache if applicable and
+     * posts it.
+     * 拿到NetworkResponse之后的处理：解析，写缓存，交付结果
+     */
+    void handleNetworkResponse(Request<?> request, NetworkResponse networkResponse,
+            long startTimeMs) {
+        try {
+            request.addMarker("network-http-complete");
+
+            // If the server returned 304 AND we delivered a response already,
+            // we're done -- don't deliver a second identical response.
+            if (networkResponse.notModified && request.hasHadResponseDelivered()) {
+                request.finish("not-modified");
+                return;
+            }
 
-                /**
-                 * Parse the response here on the worker thread.
-                 * 在工作线程上面直接解析结果
-                 * 并且封装成一个Response对象
-                 */
-                Response<?> response = request.parseNetworkResponse(networkResponse);
-                request.addMarker("network-parse-complete");
-
-                /** Write to cache if applicable.
-                 *  如果符合要求，能写入缓存的话，就写到缓存里面
-                 */
-                // TODO: Only update cache metadata instead of entire record for 304s.
-
-                /**
-                 * 还能改进的地方就是在出现了返回码是
-                 * 304的情况时，只更新缓存中的元数据(也就是response的主体)
-                 * 而不是整个cache的记录下来,有些重复的数据可以不用理会.
-                 */
-                if (request.shouldCache() && response.cacheEntry != null) {
-                    mCache.put(request.getCacheKey(), response.cacheEntry);
-                    request.addMarker("network-cache-written");
-                }
+            /**
+             * Parse the response here on the worker thread.
+             * 在工作线程上面直接解析结果
+             * 并且封装成一个Response对象
+             */
+            Response<?> response = request.parseNetworkResponse(networkResponse);
+            request.addMarker("network-parse-complete");
+
+            /** Write to cache if applicable.
+             *  如果符合要求，能写入缓存的话，就写到缓存里面
+             */
+            // TODO: Only update cache metadata instead of entire record for 304s.
 
-                /**
-                 * 将Request.java中的变量mResponseDelivered置成true
-                 * 标志着这个request的结果已经传回给了caller
-                 */
-
-                request.markDelivered();
-
-                /**
-                 * 通过ResponseDelivery的接口将包装好了的Response返回给调用者
-                 */
-                mDelivery.postResponse(request, response);
-
-            } catch (VolleyError volleyError) {
-                /**
-                 * 设置了request从队列中取出到服务器出现异常反应
-                 * 所花费的时间
-                 */
-                volleyError.setNetworkTimeMs(SystemClock.elapsedRealtime() - startTimeMs);
-
-                /**
-                 * 将网络请求的错误通过ResponseDelivery传递给调用者
-                 * 告诉它这.....不幸的一切
-                 */
-                parseAndDeliverNetworkError(request, volleyError);
-
-            } catch (Exception e) {
-                VolleyLog.e(e, "Unhandled exception %s", e.toString());
-                VolleyError volleyError = new VolleyError(e);
-                volleyError.setNetworkTimeMs(SystemClock.elapsedRealtime() - startTimeMs);
-                mDelivery.postError(request, volleyError);
+            /**
+             * 还能改进的地方就是在出现了返回码是
+             * 304的情况时，只更新缓存中的元数据(也就是response的主体)
+             * 而不是整个cache的记录下来,有些重复的数据可以不用理会.
+             */
+            if (request.shouldCache() && response.cacheEntry != null) {
+                mCache.put(request.getCacheKey(), response.cacheEntry);
+                request.addMarker("network-cache-written");
             }
+
+            /**
+             * 将Request.java中的变量mResponseDelivered置成true
+             * 标志着这个request的结果已经传回给了caller
+             */
+
+            request.markDelivered();
+
+            /**
+             * 通过ResponseDelivery的接口将包装好了的Response返回给调用者
+             */
+            mDelivery.postResponse(request, response);
+
+            /**
+             * 把结果交给等待中的具有相同cacheKey的request(如果开启了fan-out)
+             */
+            request.notifyResponseReceived(networkResponse, response);
+
+        } catch (Exception e) {
+            handleUnexpectedError(request, e, startTimeMs);
         }
     }
 
+    /**
+     * Posts an error returned by the network.
+     */
+    void handleNetworkError(Request<?> request, VolleyError volleyError, long startTimeMs) {
+        /**
+         * 设置了request从队列中取出到服务器出现异常反应
+         * 所花费的时间
+         */
+        volleyError.setNetworkTimeMs(SystemClock.elapsedRealtime() - startTimeMs);
+
+        /**
+         * 将网络请求的错误通过ResponseDelivery传递给调用者
+         * 告诉它这.....不幸的一切
+         */
+        parseAndDeliverNetworkError(request, volleyError);
+    }
+
+    private void handleUnexpectedError(Request<?> request, Exception e, long startTimeMs) {
+        VolleyLog.e(e, "Unhandled exception %s", e.toString());
+        VolleyError volleyError = new VolleyError(e);
+        volleyError.setNetworkTimeMs(SystemClock.elapsedRealtime() - startTimeMs);
+        mDelivery.postError(request, volleyError);
+    }
+
     private void parseAndDeliverNetworkError(Request<?> request, VolleyError error) {
         error = request.parseNetworkError(error);
         mDelivery.postError(request, error);
@@ -0,0 +1,316 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley;
+
+import android.os.Process;
+import android.os.SystemClock;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * An elastic set of {@link NetworkDispatcher}s that grows while the network queue backs up
+ * and shrinks again once dispatchers sit idle.
+ * 弹性的网络调度线程池
+ * 固定数量的NetworkDispatcher在后台很慢的时候全部阻塞在I/O上，mNetworkQueue越积越多
+ * 这里会在队列积压的时候增加线程，在线程空闲太久的时候减少线程
+ *
+ * <p>A sizing thread looks at the queue when a request is queued while every dispatcher is
+ * busy, when the last idle dispatcher takes a request, and when a dispatcher finishes one; it
+ * sleeps otherwise. When every dispatcher is busy and either the queue holds at least as many
+ * requests as there are dispatchers, or no dispatcher has taken a request for
+ * {@link #GROW_STALL_MS} while requests are waiting, one dispatcher is added, up to the
+ * maximum. Dispatchers above the minimum exit after waiting {@code keepAliveMs} without
+ * receiving a request.</p>
+ */
+public class NetworkDispatcherPool {
+
+    /** How long queued requests may go without any dispatcher taking one before growing. */
+    private static final long GROW_STALL_MS = 250;
+
+    /**
+     * Callback interface for sizing decisions, for tuning the pool.
+     * 线程池大小发生变化时的回调，方便调整参数
+     */
+    public interface SizingListener {
+        /**
+         * Called on the thread that made the decision, after the pool has been resized.
+         *
+         * @param previousSize Number of dispatchers before the change
+         * @param newSize Number of dispatchers after the change
+         * @param queueDepth Number of requests waiting in the network queue
+         * @param stallMs Time since a dispatcher last took a request
+         * @param reason One of "queue-depth", "queue-stall" or "idle"
+         */
+        public void onPoolResized(int previousSize, int newSize, int queueDepth, long stallMs,
+                String reason);
+    }
+
+    private final BlockingQueue<Request<?>> mQueue;
+    private final Network mNetwork;
+    private final Cache mCache;
+    private final ResponseDelivery mDelivery;
+
+    private final int mMinDispatchers;
+    private final int mMaxDispatchers;
+    private final long mKeepAliveMs;
+
+    /** The running dispatchers; guarded by this. */
+    private final List<NetworkDispatcher> mDispatchers = new ArrayList<NetworkDispatcher>();
+
+    /** Number of dispatchers currently processing a request; guarded by this. */
+    private int mBusyDispatchers = 0;
+
+    /** Last time a dispatcher took a request off the queue. */
+    private volatile long mLastTakeTimeMs;
+
+    private volatile SizingListener mSizingListener;
+
+    /** The thread sampling the queue; guarded by this. */
+    private Thread mSizingThread;
+
+    /** Whether the pool is running; guarded by this. */
+    private boolean mRunning = false;
+
+    /** Whether something happened that the sizing thread has not looked at yet; guarded by this. */
+    private boolean mSizingPending = false;
+
+    /**
+     * @param queue The network queue to serve
+     * @param network Network interface to use for performing requests
+     * @param cache Cache interface to use for writing responses to cache
+     * @param delivery Delivery interface to use for posting responses
+     * @param minDispatchers Number of dispatchers that are always kept running
+     * @param maxDispatchers Upper bound on the number of dispatchers
+     * @param keepAliveMs How long a dispatcher above the minimum may sit idle before it exits
+     */
+    public NetworkDispatcherPool(BlockingQueue<Request<?>> queue, Network network, Cache cache,
+            ResponseDelivery delivery, int minDispatchers, int maxDispatchers, long keepAliveMs) {
+        checkSizing(minDispatchers, maxDispatchers, keepAliveMs);
+        mQueue = queue;
+        mNetwork = network;
+        mCache = cache;
+        mDelivery = delivery;
+        mMinDispatchers = minDispatchers;
+        mMaxDispatchers = maxDispatchers;
+        mKeepAliveMs = keepAliveMs;
+    }
+
+    /**
+     * Validates pool sizing arguments.
+     *
+     * @throws IllegalArgumentException if they do not describe a usable pool
+     */
+    static void checkSizing(int minDispatchers, int maxDispatchers, long keepAliveMs) {
+        if (minDispatchers < 1 || maxDispatchers < minDispatchers) {
+            throw new IllegalArgumentException("Need 1 <= minDispatchers <= maxDispatchers");
+        }
+        if (keepAliveMs <= 0) {
+            throw new IllegalArgumentException("keepAliveMs must be positive");
+        }
+    }
+
+    /**
+     * Sets the listener notified of every sizing decision; null to remove it.
+     */
+    public void setSizingListener(SizingListener listener) {
+        mSizingListener = listener;
+    }
+
+    /**
+     * Starts the minimum number of dispatchers and the sizing thread.
+     */
+    public synchronized void start() {
+        if (mRunning) {
+            return;
+        }
+        mRunning = true;
+        mLastTakeTimeMs = SystemClock.elapsedRealtime();
+        for (int i = 0; i < mMinDispatchers; i++) {
+            addDispatcher();
+        }
+        mSizingThread = new Thread("VolleyDispatcherPool") {
+            @Override
+            public void run() {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                try {
+                    runSizing();
+                } catch (InterruptedException e) {
+                    // quit() interrupts the sizing thread.
+                }
+            }
+        };
+        mSizingThread.start();
+    }
+
+    /**
+     * Stops the sizing thread and forces every dispatcher to quit. If any requests are still in
+     * the queue, they are not guaranteed to be processed.
+     */
+    public synchronized void quit() {
+        if (!mRunning) {
+            return;
+        }
+        mRunning = false;
+        mSizingThread.interrupt();
+        mSizingThread = null;
+        for (NetworkDispatcher dispatcher : mDispatchers) {
+            dispatcher.quit();
+        }
+        mDispatchers.clear();
+        mBusyDispatchers = 0;
+    }
+
+    /**
+     * Returns the number of running dispatchers.
+     */
+    public synchronized int getSize() {
+        return mDispatchers.size();
+    }
+
+    /**
+     * Loop of the sizing thread: samples the queue, then sleeps until signaled or until a stall
+     * could have become long enough to grow the pool.
+     * 没有事情发生的时候一直等待，不再定时醒来
+     */
+    private void runSizing() throws InterruptedException {
+        while (true) {
+            long waitMs = sample();
+            synchronized (this) {
+                if (!mRunning) {
+                    return;
+                }
+                // A signal that came in while sampling must not be lost.
+                if (!mSizingPending && waitMs != 0) {
+                    wait(waitMs < 0 ? 0 : waitMs);
+                }
+                mSizingPending = false;
+            }
+        }
+    }
+
+    /** Wakes the sizing thread; caller holds the lock. */
+    private void signalSizing() {
+        mSizingPending = true;
+        notifyAll();
+    }
+
+    /**
+     * One sizing pass of the sizing thread.
+     *
+     * @return how long to wait before the next pass unless signaled: 0 for right away, or -1
+     *         for until signaled
+     */
+    private long sample() {
+        int queueDepth = mQueue.size();
+        long stallMs = SystemClock.elapsedRealtime() - mLastTakeTimeMs;
+        int previousSize;
+        String reason;
+        synchronized (this) {
+            if (!mRunning) {
+                return -1;
+            }
+            previousSize = mDispatchers.size();
+            if (queueDepth == 0 || previousSize >= mMaxDispatchers
+                    || mBusyDispatchers < previousSize) {
+                return -1;
+            }
+            if (queueDepth >= previousSize) {
+                reason = "queue-depth";
+            } else if (stallMs >= GROW_STALL_MS) {
+                reason = "queue-stall";
+            } else {
+                // 请求还在排队，等到卡住的时间足够长的时候再看一次
+                return GROW_STALL_MS - stallMs;
+            }
+            addDispatcher();
+        }
+        if (VolleyLog.DEBUG) {
+            VolleyLog.v("Growing network dispatchers to %d (%s, depth=%d, stall=%d ms)",
+                    previousSize + 1, reason, queueDepth, stallMs);
+        }
+        notifyResized(previousSize, previousSize + 1, queueDepth, stallMs, reason);
+        return 0;
+    }
+
+    /** Creates and starts one dispatcher; caller holds the lock. */
+    private void addDispatcher() {
+        NetworkDispatcher dispatcher =
+                new NetworkDispatcher(mQueue, mNetwork, mCache, mDelivery, this);
+        mDispatchers.add(dispatcher);
+        dispatcher.start();
+    }
+
+    long getKeepAliveMs() {
+        return mKeepAliveMs;
+    }
+
+    /**
+     * Called by a dispatcher that waited a whole keep-alive period without getting a request.
+     * 空闲的dispatcher来询问是否可以退出，线程数大于最小值的时候就让它退出
+     *
+     * @return true if the dispatcher has been removed from the pool and must exit
+     */
+    boolean retireIfIdle(NetworkDispatcher dispatcher) {
+        int previousSize;
+        synchronized (this) {
+            previousSize = mDispatchers.size();
+            if (previousSize <= mMinDispatchers || !mDispatchers.remove(dispatcher)) {
+                return false;
+            }
+        }
+        notifyResized(previousSize, previousSize - 1, mQueue.size(),
+                SystemClock.elapsedRealtime() - mLastTakeTimeMs, "idle");
+        return true;
+    }
+
+    /**
+     * Called after a request was put on the network queue. Only wakes the sizing thread when
+     * every dispatcher is busy; otherwise an idle dispatcher takes the request.
+     */
+    synchronized void onRequestQueued() {
+        if (mRunning && mBusyDispatchers >= mDispatchers.size()) {
+            signalSizing();
+        }
+    }
+
+    /** Called by a dispatcher right after it took a request. */
+    synchronized void onDispatcherBusy() {
+        mLastTakeTimeMs = SystemClock.elapsedRealtime();
+        mBusyDispatchers++;
+        if (mBusyDispatchers >= mDispatchers.size()) {
+            signalSizing();
+        }
+    }
+
+    /** Called by a dispatcher once it is done with a request. */
+    synchronized void onDispatcherIdle() {
+        if (mBusyDispatchers > 0) {
+            mBusyDispatchers--;
+        }
+        signalSizing();
+    }
+
+    private void notifyResized(int previousSize, int newSize, int queueDepth, long stallMs,
+            String reason) {
+        SizingListener listener = mSizingListener;
+        if (listener != null) {
+            listener.onPoolResized(previousSize, newSize, queueDepth, stallMs, reason);
+        }
+    }
+}
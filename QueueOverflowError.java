@@ -0,0 +1,32 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley;
+
+/**
+ * Indicates that a request was turned away or shed because the {@link RequestQueue} was full,
+ * or turned away because the queue is stopping.
+ * 队列已满或者正在停止，request被拒绝或者被挤掉时返回的错误
+ *
+ * @see RequestQueue#setCapacity(int, RequestQueue.OverflowPolicy, long)
+ * @see RequestQueue#stop(long)
+ */
+@SuppressWarnings("serial")
+public class QueueOverflowError extends VolleyError {
+    public QueueOverflowError(String exceptionMessage) {
+        super(exceptionMessage);
+    }
+}
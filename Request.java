@@ -27,8 +27,14 @@ import com.android.volley.VolleyLog.MarkerLog;
 
 import java.io.UnsupportedEncodingException;
 import java.net.URLEncoder;
+import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 
 /**
  * Base class for all network requests.
@@ -123,8 +129,39 @@ public abstract class Request<T> implements Comparable<Request<T>> {
     /** Whether or not responses to this request should be cached. */
     private boolean mShouldCache = true;
 
-    /** Whether or not this request has been canceled. */
-    private boolean mCanceled = false;
+    /**
+     * Whether or not this request has been canceled. Volatile so that a network thread reading
+     * the response body sees a cancel from another thread right away.
+     */
+    private volatile boolean mCanceled = false;
+
+    /**
+     * Actions aborting the network I/O of this request, by the thread performing it; guarded by
+     * this. More than one thread only performs the request at once when it is hedged.
+     * 正在进行网络请求的时候，由HttpStack注册进来的中断操作，cancel()的时候会被调用
+     * 按照执行网络请求的线程来存放，对冲请求的时候同一个request可能同时有两个线程在执行
+     */
+    private Map<Thread, Runnable> mAbortActions;
+
+    /**
+     * Retry state and markers of each attempt of a hedged request, by the thread performing it;
+     * guarded by this. An attempt's markers are null once they have been taken.
+     * 对冲请求的两个尝试各自用自己的RetryPolicy，marker先记在这里，由调度线程统一写进MarkerLog
+     */
+    private Map<Thread, Attempt> mAttempts;
+
+    /** See {@link #mAttempts}. */
+    private static class Attempt {
+        final RetryPolicy retryPolicy;
+        List<String> markers = new ArrayList<String>();
+
+        Attempt(RetryPolicy retryPolicy) {
+            this.retryPolicy = retryPolicy;
+        }
+    }
+
+    /** Policy for sending a second attempt of a slow request, or null. */
+    private HedgingPolicy mHedgingPolicy;
 
     /** Whether or not a response has been delivered for this request yet. */
     private boolean mResponseDelivered = false;
@@ -139,6 +176,21 @@ public abstract class Request<T> implements Comparable<Request<T>> {
      */
     private static final long SLOW_REQUEST_THRESHOLD_MS = 3000;
 
+    /**
+     * Runs the abort actions of canceled requests. cancel() is usually called on the main
+     * thread, and closing a connection may do socket I/O (an SSL close alert, for example).
+     * 取消一般是在主线程调用的，断开连接可能有socket I/O，放到后台线程去做
+     */
+    private static final Executor ABORT_EXECUTOR = Executors.newCachedThreadPool(
+            new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "VolleyAbort");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+
     /**
      * The retry policy for this request. 
      * 在前面已经介绍到了，RetryPolicy.java及其默认实现类
@@ -158,6 +210,13 @@ public abstract class Request<T> implements Comparable<Request<T>> {
      */
     private Cache.Entry mCacheEntry = null;
 
+    /**
+     * Absolute deadline of this request in the {@link SystemClock#elapsedRealtime()} time base,
+     * or 0 if it has none.
+     * request的截止时间，超过这个时间还没有开始处理的request就没有必要再发送了
+     */
+    private long mDeadlineMs = 0;
+
     /** An opaque token tagging this request; used for bulk cancellation. 
      *  一个关于该request的不公开透明的token，用于批量取消
      * 在RequestQueue.java中会用到这个mTag
@@ -219,7 +278,11 @@ public abstract class Request<T> implements Comparable<Request<T>> {
      * @return This Request object to allow for chaining.
      */
     public Request<?> setTag(Object tag) {
+        Object oldTag = mTag;
         mTag = tag;
+        if (mRequestQueue != null && oldTag != tag) {
+            mRequestQueue.onTagChanged(this, oldTag, tag);
+        }
         return this;
     }
 
@@ -262,6 +325,38 @@ public abstract class Request<T> implements Comparable<Request<T>> {
         return 0;
     }
 
+    /**
+     * Sets an absolute deadline for this request, in the {@link SystemClock#elapsedRealtime()}
+     * time base. Within one {@link Priority}, requests with a deadline are dispatched before
+     * those without one, earliest deadline first. A request that is still queued when its
+     * deadline passes is dropped with a {@link TimeoutError} instead of being performed. The
+     * deadline must not be changed once the request has been added to a queue.
+     * 设置request的截止时间，同一个优先级下面截止时间早的先处理
+     * 已经过了截止时间的request不会再去读缓存或者访问网络，直接返回TimeoutError
+     *
+     * @param deadlineMs The deadline, or 0 to clear it
+     * @return This Request object to allow for chaining.
+     */
+    public Request<?> setDeadline(long deadlineMs) {
+        mDeadlineMs = deadlineMs;
+        return this;
+    }
+
+    /**
+     * Returns the deadline of this request, or 0 if it has none.
+     * @see Request#setDeadline(long)
+     */
+    public long getDeadline() {
+        return mDeadlineMs;
+    }
+
+    /**
+     * Returns true if this request has a deadline and it has passed.
+     */
+    public boolean isPastDeadline() {
+        return mDeadlineMs > 0 && SystemClock.elapsedRealtime() >= mDeadlineMs;
+    }
+
     /**
      * Sets the retry policy for this request.
      * 给request设置重试策略
@@ -276,6 +371,15 @@ public abstract class Request<T> implements Comparable<Request<T>> {
      * Adds an event to this request's event log; for debugging.
      */
     public void addMarker(String tag) {
+        synchronized (this) {
+            Attempt attempt = mAttempts != null ? mAttempts.get(Thread.currentThread()) : null;
+            if (attempt != null) {
+                if (attempt.markers != null) {
+                    attempt.markers.add(tag);
+                }
+                return;
+            }
+        }
         if (MarkerLog.ENABLED) {
             mEventLog.add(tag, Thread.currentThread().getId());
         } else if (mRequestBirthTime == 0) {
@@ -329,6 +433,19 @@ public abstract class Request<T> implements Comparable<Request<T>> {
         }
     }
 
+    /**
+     * Notifies the request queue that a final response has been posted for this request, so
+     * that duplicates waiting on the same cache key can be served from it.
+     * 告诉RequestQueue这个request已经拿到了最终的response
+     * 开启了fan-out的话，RequestQueue会把结果直接交给等待中的重复request
+     */
+    /* package */ void notifyResponseReceived(NetworkResponse networkResponse,
+            Response<?> response) {
+        if (mRequestQueue != null) {
+            mRequestQueue.onResponseReceived(this, networkResponse, response);
+        }
+    }
+
     /**
      * Associates this request with the given queue. The request queue will be notified when this
      * request has finished.
@@ -427,10 +544,68 @@ public abstract class Request<T> implements Comparable<Request<T>> {
     }
 
     /**
-     * Mark this request as canceled.  No callback will be delivered.
+     * Mark this request as canceled.  No callback will be delivered. Network I/O in progress is
+     * aborted on a background thread, so this never does I/O on the calling thread.
      */
     public void cancel() {
         mCanceled = true;
+        Map<Thread, Runnable> abortActions;
+        synchronized (this) {
+            abortActions = mAbortActions;
+            mAbortActions = null;
+        }
+        if (abortActions != null) {
+            for (Runnable abortAction : abortActions.values()) {
+                ABORT_EXECUTOR.execute(abortAction);
+            }
+        }
+    }
+
+    /**
+     * Registers the action that aborts the network I/O the calling thread performs for this
+     * request, for example by disconnecting its connection; called by the
+     * {@link com.android.volley.toolbox.HttpStack} performing the request. {@link #cancel()} runs
+     * the action on a background thread, never on the canceling thread. If the request has
+     * already been canceled, the action runs right away on the calling thread.
+     * 注册中断网络I/O的操作；传入null表示请求已经结束，清除之前注册的操作
+     *
+     * @param abortAction The action, or null to clear it once the I/O is done
+     */
+    public void setAbortAction(Runnable abortAction) {
+        Thread thread = Thread.currentThread();
+        synchronized (this) {
+            if (abortAction == null) {
+                if (mAbortActions != null) {
+                    mAbortActions.remove(thread);
+                }
+                return;
+            }
+            if (!mCanceled) {
+                if (mAbortActions == null) {
+                    mAbortActions = new HashMap<Thread, Runnable>(2);
+                }
+                mAbortActions.put(thread, abortAction);
+                return;
+            }
+        }
+        abortAction.run();
+    }
+
+    /**
+     * Aborts the network I/O the given thread performs for this request, without canceling the
+     * request; used to stop the losing attempt of a hedged request.
+     * 只中断某一个线程上面的网络请求，request本身不会被取消
+     */
+    public void abortAttempt(Thread thread) {
+        Runnable abortAction = null;
+        synchronized (this) {
+            if (mAbortActions != null) {
+                abortAction = mAbortActions.remove(thread);
+            }
+        }
+        if (abortAction != null) {
+            abortAction.run();
+        }
     }
 
     /**
@@ -641,16 +816,90 @@ public abstract class Request<T> implements Comparable<Request<T>> {
      * 如果
      */
     public final int getTimeoutMs() {
-        return mRetryPolicy.getCurrentTimeout();
+        return getRetryPolicy().getCurrentTimeout();
     }
 
     /**
-     * Returns the retry policy that should be used  for this request.
+     * Returns the retry policy that should be used  for this request. On a thread performing an
+     * attempt of a hedged request, this is the attempt's own policy.
      */
     public RetryPolicy getRetryPolicy() {
+        synchronized (this) {
+            Attempt attempt = mAttempts != null ? mAttempts.get(Thread.currentThread()) : null;
+            if (attempt != null) {
+                return attempt.retryPolicy;
+            }
+        }
         return mRetryPolicy;
     }
 
+    /**
+     * Starts an attempt of this request on the calling thread, one of several performed at once
+     * when the request is hedged. Until {@link #endAttempt()}, the thread sees
+     * {@code retryPolicy} as the request's retry policy, and its markers are held back for
+     * {@link #takeAttemptMarkers(Thread)} instead of being logged.
+     */
+    public void beginAttempt(RetryPolicy retryPolicy) {
+        synchronized (this) {
+            if (mAttempts == null) {
+                mAttempts = new HashMap<Thread, Attempt>(2);
+            }
+            mAttempts.put(Thread.currentThread(), new Attempt(retryPolicy));
+        }
+    }
+
+    /**
+     * Ends the attempt started on the calling thread by {@link #beginAttempt(RetryPolicy)}.
+     *
+     * @return Markers the attempt added that have not been taken yet
+     */
+    public List<String> endAttempt() {
+        List<String> markers = null;
+        synchronized (this) {
+            Attempt attempt = mAttempts != null ? mAttempts.remove(Thread.currentThread()) : null;
+            if (attempt != null) {
+                markers = attempt.markers;
+            }
+        }
+        return markers != null ? markers : Collections.<String>emptyList();
+    }
+
+    /**
+     * Takes the markers the attempt running on the given thread has added so far, so that the
+     * caller can add them from its own thread; markers the attempt adds afterwards are dropped.
+     */
+    public List<String> takeAttemptMarkers(Thread thread) {
+        List<String> markers = null;
+        synchronized (this) {
+            Attempt attempt = mAttempts != null ? mAttempts.get(thread) : null;
+            if (attempt != null) {
+                markers = attempt.markers;
+                attempt.markers = null;
+            }
+        }
+        return markers != null ? markers : Collections.<String>emptyList();
+    }
+
+    /**
+     * Sets the policy for sending a second attempt of this request when the first one is slow;
+     * only honored for GET and HEAD requests performed through a
+     * {@link com.android.volley.toolbox.HedgingNetwork}.
+     *
+     * @param hedgingPolicy The policy, or null to send a single attempt
+     * @return This Request object to allow for chaining.
+     */
+    public Request<?> setHedgingPolicy(HedgingPolicy hedgingPolicy) {
+        mHedgingPolicy = hedgingPolicy;
+        return this;
+    }
+
+    /**
+     * Returns the hedging policy of this request, or null if it is not hedged.
+     */
+    public HedgingPolicy getHedgingPolicy() {
+        return mHedgingPolicy;
+    }
+
     /**
      * Mark this request as having a response delivered on it.  This can be used
      * later in the request's lifetime for suppressing identical responses.
@@ -715,13 +964,14 @@ public abstract class Request<T> implements Comparable<Request<T>> {
     }
 
     /**
-     * Our comparator sorts from high to low priority, and secondarily by
+     * Our comparator sorts from high to low priority, then by earliest deadline, and finally by
      * sequence number to provide FIFO ordering.
      * Request类实现了Comparable类
      * 需要重写compareTo()方法
      * 来达到能够将两个request相互比较的目的
      * 这里面的比较策略是通过看两request的优先级大小
-     * 高优先级的排在前面，相等的优先级就按照排队时候发放的序列号来比较
+     * 高优先级的排在前面，相等的优先级先比较截止时间，截止时间早的排在前面
+     * 最后按照排队时候发放的序列号来比较
      * (在RequestQueue.java中的add()函数里会给每个加入到队列中的request发放一个sequence)
      */
     @Override
@@ -730,10 +980,23 @@ public abstract class Request<T> implements Comparable<Request<T>> {
         Priority right = other.getPriority();
 
         // High-priority requests are "lesser" so they are sorted to the front.
-        // Equal priorities are sorted by sequence number to provide FIFO ordering.
-        return left == right ?
-                this.mSequence - other.mSequence :
-                right.ordinal() - left.ordinal();
+        if (left != right) {
+            return right.ordinal() - left.ordinal();
+        }
+
+        // Within a priority, requests with a deadline come first, earliest deadline first.
+        if (this.mDeadlineMs != other.mDeadlineMs) {
+            if (this.mDeadlineMs == 0) {
+                return 1;
+            }
+            if (other.mDeadlineMs == 0) {
+                return -1;
+            }
+            return this.mDeadlineMs < other.mDeadlineMs ? -1 : 1;
+        }
+
+        // Otherwise requests are sorted by sequence number to provide FIFO ordering.
+        return this.mSequence - other.mSequence;
     }
 
     /**
@@ -18,15 +18,23 @@ package com.android.volley;
 
 import android.os.Handler;
 import android.os.Looper;
+import android.os.SystemClock;
 
+import java.io.Flushable;
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Queue;
 import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
 import java.util.concurrent.PriorityBlockingQueue;
 import java.util.concurrent.atomic.AtomicInteger;
 
@@ -72,23 +80,25 @@ public class RequestQueue {
      */
     private AtomicInteger mSequenceGenerator = new AtomicInteger();
 
+    /**
+     * Index from tag to the live requests carrying it, for {@link #cancelAll(Object)}.
+     * 按照tag建立的索引，只在持有mCurrentRequests锁的时候修改
+     */
+    private final TagIndex mTagIndex = new TagIndex();
+
     /**
      * Staging area for requests that already have a duplicate request in flight.
-     * 用HashMap来形成一个筹备区域，这个筹备区域是为重复的request准备的。
-     * 每个对应的cacheKey都有一个Queue来存储，因为相同的请求有时不止一个。
-     * 这些重复的request已经有一个在被处理了，其他的不用重复处理，在这个HashMap里面等着拿结果就可以了
+     * 用来存放重复request的筹备区域，每个对应的cacheKey都有一个Queue来存储，因为相同的请求有时不止一个。
+     * 这些重复的request已经有一个在被处理了，其他的不用重复处理，在这里等着拿结果就可以了
+     * 按照cacheKey分段加锁，不同cacheKey的add()和finish()不会在同一把锁上排队
      * <ul>
-     *     <li>containsKey(cacheKey) indicates that there is a request in flight for the given cache
-     *          key.
-     *         用containsKey(String cacheKey)可以判定一个已经发送出去的请求是否有重复的请求。
-     *     </li>
-     *     <li>get(cacheKey) returns waiting requests for the given cache key. The in flight request
-     *          is <em>not</em> contained in that list. Is null if no requests are staged.</li>
-     *         get()方法会返回一个queue，这个queue有可能是空的，也有可能里面存放着具有相同cacheKey的一系列request
+     *     <li>{@link WaitingRequestMap#markInFlightOrStage} either marks the cache key as in
+     *          flight or parks the request behind the request that already is.</li>
+     *     <li>{@link WaitingRequestMap#release} returns waiting requests for the given cache
+     *          key. The in flight request is <em>not</em> contained in that queue.</li>
      * </ul>
      */
-    private final Map<String, Queue<Request<?>>> mWaitingRequests =
-            new HashMap<String, Queue<Request<?>>>();
+    private final WaitingRequestMap mWaitingRequests = new WaitingRequestMap();
 
     /**
      * The set of all requests currently being processed by this RequestQueue. A Request
@@ -103,14 +113,15 @@ public class RequestQueue {
     private final Set<Request<?>> mCurrentRequests = new HashSet<Request<?>>();
 
     /** 
-     * The cache triage queue. 
+     * The cache triage queues, one per cache dispatcher. 
      * 运用到了优先队列
      * 也就是里面的每个元素都会有一个优先级，优先级高的比优先级低的要先调度。
      * 这个队列里面存放着需要访问缓存的一些Request，等待着调度器(dispatcher)的处理
      * 后面慢慢的会介绍到dispatcher
+     * 每个CacheDispatcher有一个自己的队列，request按照cacheKey的hash值分到其中一个队列里面
+     * 这样相同cacheKey的request总是由同一个CacheDispatcher按顺序处理
      */
-    private final PriorityBlockingQueue<Request<?>> mCacheQueue =
-        new PriorityBlockingQueue<Request<?>>();
+    private PriorityBlockingQueue<Request<?>>[] mCacheQueues = newCacheQueues(1);
 
     /** 
      * The queue of requests that are actually going out to the network.
@@ -119,8 +130,7 @@ public class RequestQueue {
      * 还包括一些缓存出了点小问题的request也会被加入到这里
      * 在后面的代码中能够看到
      */
-    private final PriorityBlockingQueue<Request<?>> mNetworkQueue =
-        new PriorityBlockingQueue<Request<?>>();
+    private BlockingQueue<Request<?>> mNetworkQueue = new PriorityBlockingQueue<Request<?>>();
 
     /** 
      * Number of network request dispatcher threads to start. 
@@ -156,21 +166,122 @@ public class RequestQueue {
      */
     private NetworkDispatcher[] mDispatchers;
 
+    /**
+     * The elastic network dispatcher pool, used instead of {@link #mDispatchers} when this
+     * queue was created with a minimum and maximum number of dispatchers; created by
+     * {@link #start()}.
+     * 弹性网络调度线程池，只有通过指定最小/最大线程数的构造函数创建的时候才会在start()里面创建
+     */
+    private volatile NetworkDispatcherPool mDispatcherPool;
+
+    /** Minimum number of elastic network dispatchers, or 0 for a fixed pool. */
+    private final int mMinNetworkThreads;
+
+    /** Idle keep-alive of elastic network dispatchers. */
+    private final long mNetworkKeepAliveMs;
+
+    /** Listener handed to the elastic dispatcher pool. */
+    private volatile NetworkDispatcherPool.SizingListener mSizingListener;
+
+    /**
+     * Executor every network request is performed on, or null if each network dispatcher
+     * thread performs its requests itself.
+     * 如果不为null，网络请求会交给这个Executor去执行，只有一个dispatcher线程负责从队列里面取request
+     */
+    private final Executor mNetworkExecutor;
+
+    /**
+     * Upper bound on the requests in flight on {@link #mNetworkExecutor} or
+     * {@link #mAsyncNetwork}.
+     */
+    private final int mMaxConcurrentRequests;
+
+    /**
+     * Asynchronous network used instead of {@link #mNetwork}, or null.
+     * 如果不为null，网络请求通过这个异步接口发出，mNetwork为null
+     */
+    private final AsyncNetwork mAsyncNetwork;
+
     /** 
-     * The cache dispatcher. 
-     * 缓存调度线程(和上面的差不多吧= =，但是不是线程池了)
+     * The cache dispatchers, sharded by cache key. 
+     * 缓存调度线程，默认只有一个，可以通过{@link #setCacheDispatcherCount(int)}设置多个
      * 处理了涉及到缓存的request
      */
-    private CacheDispatcher mCacheDispatcher;
+    private CacheDispatcher[] mCacheDispatchers;
 
     /**
      * 这个貌似是和listener差不多的用处
      * 每个request结束之后，就会通知所有已经注册过的listener(所谓注册无非就是实现了RequestFinishedListener.java这个接口
      * 然后再将自己传入，加入到这个ArrayList里面来)
      * 在{@link #finish()}里面会用到这个ArrayList
+     * 使用CopyOnWriteArrayList，finish()遍历的时候不需要加锁，注册和取消注册的时候才复制一份
      */
-    private List<RequestFinishedListener> mFinishedListeners =
-            new ArrayList<RequestFinishedListener>();
+    @SuppressWarnings("rawtypes") // Holds listeners of every request type.
+    private final List<RequestFinishedListener> mFinishedListeners =
+            new CopyOnWriteArrayList<RequestFinishedListener>();
+
+    /**
+     * Listeners the queue relies on for its own bookkeeping, such as releasing per-host slots;
+     * always notified on the finishing thread, before {@link #mFinishedListeners}.
+     */
+    @SuppressWarnings("rawtypes") // Holds listeners of every request type.
+    private final List<RequestFinishedListener> mInternalFinishedListeners =
+            new CopyOnWriteArrayList<RequestFinishedListener>();
+
+    /**
+     * Runs {@link #mFinishedListeners} on an executor, or null to run them on the finishing
+     * thread.
+     */
+    private volatile FinishedListenerDispatcher mFinishedListenerDispatcher;
+
+    /**
+     * Whether a final response is handed straight to the duplicates parked behind the request
+     * that produced it, instead of sending them back through the cache queue.
+     * 是否开启fan-out模式：in flight的request拿到结果之后，直接把结果交给等待中的重复request
+     * 不用再让它们回到缓存队列里面重新读一次磁盘、再解析一次
+     */
+    private volatile boolean mResponseFanOutEnabled = false;
+
+    /**
+     * What {@link #add(Request)} does when the queue already holds its capacity of requests.
+     * 队列满了之后的处理策略
+     */
+    public enum OverflowPolicy {
+        /** Fail the new request with a {@link QueueOverflowError}. */
+        REJECT,
+        /**
+         * Remove the queued request of the lowest {@link Request.Priority} that is lower than
+         * the new one, newest first, and fail it with a {@link QueueOverflowError}; reject the
+         * new request if there is none.
+         * 挤掉优先级最低的那个还在排队的request
+         */
+        SHED_LOWEST_PRIORITY,
+        /**
+         * Block the caller of {@link #add(Request)} until a request finishes, rejecting the new
+         * request once the timeout has elapsed. Do not use this when adding requests on the
+         * thread responses are delivered on.
+         */
+        BLOCK
+    }
+
+    /** Upper bound on the live requests; 0 for no bound. Guarded by mCurrentRequests. */
+    private int mCapacity = 0;
+
+    private OverflowPolicy mOverflowPolicy = OverflowPolicy.REJECT;
+
+    private long mBlockTimeoutMs = 0;
+
+    /**
+     * Set by {@link #stop(long)} while it waits for the live requests to finish; new requests
+     * are turned away meanwhile. Written under the mCurrentRequests lock.
+     */
+    private volatile boolean mDraining = false;
+
+    /** Number of queued requests removed to make room for higher priority ones. */
+    private final AtomicInteger mShedCount = new AtomicInteger();
+
+    /** Number of requests turned away by {@link #add(Request)}. */
+    private final AtomicInteger mRejectedCount = new AtomicInteger();
 
     /**
      * Creates the worker pool. Processing will not begin until {@link #start()} is called.
@@ -190,6 +301,98 @@ public class RequestQueue {
         mCache = cache;
         mNetwork = network;
         mDispatchers = new NetworkDispatcher[threadPoolSize];
+        mMinNetworkThreads = 0;
+        mNetworkKeepAliveMs = 0;
+        mNetworkExecutor = null;
+        mMaxConcurrentRequests = threadPoolSize;
+        mAsyncNetwork = null;
+        mDelivery = delivery;
+    }
+
+    /**
+     * Creates the worker pool with an elastic number of network dispatchers. Processing will
+     * not begin until {@link #start()} is called.
+     * 创建一个网络调度线程数量可以伸缩的RequestQueue
+     * 队列积压的时候线程会增加到maxThreads，空闲超过keepAliveMs的线程会退出，但不会少于minThreads
+     *
+     * @param cache A Cache to use for persisting responses to disk
+     * @param network A Network interface for performing HTTP requests
+     * @param minThreads Number of network dispatcher threads that are always kept running
+     * @param maxThreads Upper bound on the number of network dispatcher threads
+     * @param keepAliveMs How long a dispatcher above the minimum may sit idle before it exits
+     * @param delivery A ResponseDelivery interface for posting responses and errors
+     */
+    public RequestQueue(Cache cache, Network network, int minThreads, int maxThreads,
+            long keepAliveMs, ResponseDelivery delivery) {
+        NetworkDispatcherPool.checkSizing(minThreads, maxThreads, keepAliveMs);
+        mCache = cache;
+        mNetwork = network;
+        mDispatchers = new NetworkDispatcher[0];
+        mMinNetworkThreads = minThreads;
+        mNetworkKeepAliveMs = keepAliveMs;
+        mNetworkExecutor = null;
+        mMaxConcurrentRequests = maxThreads;
+        mAsyncNetwork = null;
+        mDelivery = delivery;
+    }
+
+    /**
+     * Creates the worker pool with network requests performed on the given executor. Processing
+     * will not begin until {@link #start()} is called.
+     * 网络请求交给外部传入的Executor执行，最多同时执行maxConcurrentRequests个
+     * 例如传入每个任务一个虚拟线程的Executor，就可以同时挂起几百个慢请求而不需要几百个系统线程
+     *
+     * <p>Requests are still taken from the network queue in {@link Request#compareTo(Request)}
+     * order; see {@link ExecutorNetworkDispatcher}.</p>
+     *
+     * @param cache A Cache to use for persisting responses to disk
+     * @param network A Network interface for performing HTTP requests
+     * @param executor Executor each network request is performed on
+     * @param maxConcurrentRequests Upper bound on the number of requests in flight
+     * @param delivery A ResponseDelivery interface for posting responses and errors
+     */
+    public RequestQueue(Cache cache, Network network, Executor executor,
+            int maxConcurrentRequests, ResponseDelivery delivery) {
+        if (executor == null) {
+            throw new IllegalArgumentException("executor must not be null");
+        }
+        mCache = cache;
+        mNetwork = network;
+        mDispatchers = new NetworkDispatcher[1];
+        mMinNetworkThreads = 0;
+        mNetworkKeepAliveMs = 0;
+        mNetworkExecutor = executor;
+        mMaxConcurrentRequests = maxConcurrentRequests;
+        mAsyncNetwork = null;
+        mDelivery = delivery;
+    }
+
+    /**
+     * Creates the worker pool with network requests started on an asynchronous network, so that
+     * many requests can be in flight without a thread each. Processing will not begin until
+     * {@link #start()} is called.
+     * 使用异步的网络接口，一个调度线程就可以同时挂起maxConcurrentRequests个请求
+     * 阻塞的Network可以用ExecutorAsyncNetwork包装一下
+     *
+     * @param cache A Cache to use for persisting responses to disk
+     * @param network An AsyncNetwork interface for performing HTTP requests
+     * @param maxConcurrentRequests Upper bound on the number of requests in flight
+     * @param delivery A ResponseDelivery interface for posting responses and errors
+     * @see AsyncNetworkDispatcher
+     */
+    public RequestQueue(Cache cache, AsyncNetwork network, int maxConcurrentRequests,
+            ResponseDelivery delivery) {
+        if (network == null) {
+            throw new IllegalArgumentException("network must not be null");
+        }
+        mCache = cache;
+        mNetwork = null;
+        mDispatchers = new NetworkDispatcher[1];
+        mMinNetworkThreads = 0;
+        mNetworkKeepAliveMs = 0;
+        mNetworkExecutor = null;
+        mMaxConcurrentRequests = maxConcurrentRequests;
+        mAsyncNetwork = network;
         mDelivery = delivery;
     }
 
@@ -219,41 +422,156 @@ public class RequestQueue {
      * Starts the dispatchers in this queue.
      * 先将所有的调度线程都停止
      * 再重新创建并启动
-     * 将mNetworkQueue和mCacheQueue传入到dispatcher中
+     * 将mNetworkQueue和mCacheQueues传入到dispatcher中
      * 方便从queue中取出request来进行处理
      * 将mDelivery接口传入，方便将请求结果返回
      * 
-     * cacheDispatcher创建一个就够了，networkDispatcher创建了多个
+     * cacheDispatcher默认创建一个就够了，networkDispatcher创建了多个
      * network花费时间比较长，需要开多个线程来工作
      */
     public void start() {
-        stop();  // Make sure any currently running dispatchers are stopped.
-        // Create the cache dispatcher and start it.
-        mCacheDispatcher = new CacheDispatcher(mCacheQueue, mNetworkQueue, mCache, mDelivery);
-        mCacheDispatcher.start();
+        stopDispatchers();  // Make sure any currently running dispatchers are stopped.
+        mDraining = false;
+        // Create the cache dispatchers and start them. They share one initializer so that
+        // Cache.initialize() runs once before any of them serves a request.
+        CacheDispatcher.CacheInitializer cacheInitializer =
+                new CacheDispatcher.CacheInitializer(mCache);
+        // The pool is created first so that the cache dispatchers can tell it about the
+        // requests they send to the network.
+        NetworkDispatcherPool pool = null;
+        if (mMinNetworkThreads > 0) {
+            pool = new NetworkDispatcherPool(mNetworkQueue, mNetwork, mCache,
+                    mDelivery, mMinNetworkThreads, mMaxConcurrentRequests, mNetworkKeepAliveMs);
+            pool.setSizingListener(mSizingListener);
+        }
+        mDispatcherPool = pool;
+        mCacheDispatchers = new CacheDispatcher[mCacheQueues.length];
+        for (int i = 0; i < mCacheQueues.length; i++) {
+            mCacheDispatchers[i] = new CacheDispatcher(mCacheQueues[i], mNetworkQueue, mCache,
+                    mDelivery, cacheInitializer, pool);
+            mCacheDispatchers[i].start();
+        }
+
+        if (pool != null) {
+            pool.start();
+            return;
+        }
 
         // Create network dispatchers (and corresponding threads) up to the pool size.
         for (int i = 0; i < mDispatchers.length; i++) {
-            NetworkDispatcher networkDispatcher = new NetworkDispatcher(mNetworkQueue, mNetwork,
-                    mCache, mDelivery);
+            NetworkDispatcher networkDispatcher;
+            if (mAsyncNetwork != null) {
+                networkDispatcher = new AsyncNetworkDispatcher(mNetworkQueue, mAsyncNetwork,
+                        mCache, mDelivery, mMaxConcurrentRequests);
+            } else if (mNetworkExecutor != null) {
+                networkDispatcher = new ExecutorNetworkDispatcher(mNetworkQueue, mNetwork,
+                        mCache, mDelivery, mNetworkExecutor, mMaxConcurrentRequests);
+            } else {
+                networkDispatcher =
+                        new NetworkDispatcher(mNetworkQueue, mNetwork, mCache, mDelivery);
+            }
             mDispatchers[i] = networkDispatcher;
             networkDispatcher.start();
         }
     }
 
     /**
-     * Stops the cache and network dispatchers.
-     * 将所有正在工作状态的dispatcher挨个退出
+     * Stops the cache and network dispatchers, then flushes the cache if it implements
+     * {@link Flushable}, so that a {@link com.android.volley.toolbox.WriteBehindCache} writes
+     * the entries it still holds. The flush does disk I/O on the calling thread.
+     * 将所有正在工作状态的dispatcher挨个退出，然后把缓存里面还没写完的数据flush出去
      */
     public void stop() {
-        if (mCacheDispatcher != null) {
-            mCacheDispatcher.quit();
+        stopDispatchers();
+        if (mCache instanceof Flushable) {
+            try {
+                ((Flushable) mCache).flush();
+            } catch (IOException e) {
+                VolleyLog.e(e, "Failed to flush cache");
+            }
+        }
+    }
+
+    /** Stops the cache and network dispatchers. */
+    private void stopDispatchers() {
+        if (mCacheDispatchers != null) {
+            for (CacheDispatcher cacheDispatcher : mCacheDispatchers) {
+                cacheDispatcher.quit();
+            }
         }
         for (int i = 0; i < mDispatchers.length; i++) {
             if (mDispatchers[i] != null) {
                 mDispatchers[i].quit();
             }
         }
+        if (mDispatcherPool != null) {
+            mDispatcherPool.quit();
+            mDispatcherPool = null;
+        }
+    }
+
+    /** Tells the elastic dispatcher pool, if any, that requests were put on the network queue. */
+    private void onNetworkRequestsQueued() {
+        NetworkDispatcherPool pool = mDispatcherPool;
+        if (pool != null) {
+            pool.onRequestQueued();
+        }
+    }
+
+    /**
+     * Stops accepting requests, waits for the live requests to finish, then stops the
+     * dispatchers and flushes the cache if it implements {@link Flushable}. Requests added in
+     * the meantime fail with a {@link QueueOverflowError}. Requests still live when the timeout
+     * elapses are canceled, forgotten by the queue (they no longer count against its capacity
+     * or hold their cache key in flight after a restart) and returned.
+     * 优雅的停止：不再接受新的request，等待已经加入的request处理完(或者超时)，
+     * 然后停止所有的dispatcher，并把缓存里面还没写完的数据flush出去
+     *
+     * <p>Responses are delivered through the {@link ResponseDelivery} before a request finishes,
+     * so this must not be called on the delivery thread (the main thread by default), which
+     * would keep requests from finishing until the timeout.</p>
+     *
+     * @param drainTimeoutMs How long to wait for the live requests
+     * @return The requests that were dropped because they did not finish in time
+     */
+    public List<Request<?>> stop(long drainTimeoutMs) {
+        List<Request<?>> dropped;
+        synchronized (mCurrentRequests) {
+            mDraining = true;
+            // Wake up callers blocked in add() so that they give up.
+            mCurrentRequests.notifyAll();
+            long deadline = SystemClock.elapsedRealtime() + drainTimeoutMs;
+            long remainingMs;
+            while (!mCurrentRequests.isEmpty()
+                    && (remainingMs = deadline - SystemClock.elapsedRealtime()) > 0) {
+                try {
+                    mCurrentRequests.wait(remainingMs);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+            dropped = new ArrayList<Request<?>>(mCurrentRequests);
+            // 超时还没结束的request要从所有的记录里面清除，否则start()之后相同cacheKey的request
+            // 会一直等一个已经被取消的owner
+            for (Request<?> request : dropped) {
+                mCurrentRequests.remove(request);
+                mTagIndex.remove(request.getTag(), request);
+            }
+        }
+        for (Request<?> request : dropped) {
+            request.cancel();
+            if (request.shouldCache()) {
+                mWaitingRequests.purge(request);
+            }
+        }
+        if (!dropped.isEmpty()) {
+            VolleyLog.d("Dropping %d requests still live after %d ms", dropped.size(),
+                    drainTimeoutMs);
+        }
+
+        stop();
+        return dropped;
     }
 
     /**
@@ -275,6 +593,284 @@ public class RequestQueue {
         return mCache;
     }
 
+    /**
+     * Sets the number of cache dispatcher threads. Requests are sharded across them by the hash
+     * of their cache key, so requests for one key are still triaged in order while cache hits
+     * for different keys are read and parsed in parallel. Must be called before the first
+     * {@link #add(Request)} and {@link #start()}.
+     * 设置缓存调度线程的数量，必须在add()和start()之前调用
+     *
+     * @param count Number of cache dispatchers, at least 1
+     */
+    public void setCacheDispatcherCount(int count) {
+        if (count < 1) {
+            throw new IllegalArgumentException("count must be at least 1");
+        }
+        checkNotStarted();
+        mCacheQueues = newCacheQueues(count);
+    }
+
+    @SuppressWarnings({"rawtypes", "unchecked"}) // Java has no generic array creation.
+    private static PriorityBlockingQueue<Request<?>>[] newCacheQueues(int count) {
+        PriorityBlockingQueue<Request<?>>[] queues = new PriorityBlockingQueue[count];
+        for (int i = 0; i < count; i++) {
+            queues[i] = new PriorityBlockingQueue<Request<?>>();
+        }
+        return queues;
+    }
+
+    /**
+     * Returns the cache queue of the dispatcher that owns the given cache key.
+     * 根据cacheKey找到对应的缓存队列
+     */
+    private PriorityBlockingQueue<Request<?>> cacheQueueFor(String cacheKey) {
+        PriorityBlockingQueue<Request<?>>[] queues = mCacheQueues;
+        if (queues.length == 1) {
+            return queues[0];
+        }
+        return queues[(cacheKey.hashCode() & 0x7fffffff) % queues.length];
+    }
+
+    /**
+     * Sets the listener notified whenever the elastic dispatcher pool grows or shrinks.
+     *
+     * @throws IllegalStateException if this queue uses a fixed number of dispatchers
+     */
+    public void setDispatcherSizingListener(NetworkDispatcherPool.SizingListener listener) {
+        if (mMinNetworkThreads == 0) {
+            throw new IllegalStateException("RequestQueue has a fixed dispatcher pool");
+        }
+        mSizingListener = listener;
+        NetworkDispatcherPool pool = mDispatcherPool;
+        if (pool != null) {
+            pool.setSizingListener(listener);
+        }
+    }
+
+    /**
+     * Limits the number of network requests in flight per host and lets hosts with requests
+     * waiting at the same priority take turns, so that one slow host cannot occupy every
+     * network dispatcher. The host is taken from {@link Request#getUrl()}. Must be called before
+     * the first {@link #add(Request)} and {@link #start()}.
+     * 限制每个host同时在处理的请求数量，同一优先级下不同host轮流调度
+     * 必须在add()和start()之前调用
+     *
+     * @param maxRequestsPerHost Upper bound on the requests in flight for one host
+     * @see HostFairBlockingQueue
+     */
+    public void setMaxRequestsPerHost(int maxRequestsPerHost) {
+        checkNotStarted();
+        checkDefaultNetworkQueue();
+        HostFairBlockingQueue networkQueue = new HostFairBlockingQueue(maxRequestsPerHost);
+        mNetworkQueue = networkQueue;
+        mInternalFinishedListeners.add(networkQueue);
+    }
+
+    /**
+     * Lets requests waiting in the network queue rise one {@link Request.Priority} step for every
+     * {@code agingIntervalMs} they have waited, so that low priority requests cannot be starved by
+     * a steady stream of higher priority ones. Cannot be combined with
+     * {@link #setMaxRequestsPerHost(int)}. Must be called before the first {@link #add(Request)}
+     * and {@link #start()}.
+     * 开启网络队列的优先级老化，必须在add()和start()之前调用
+     *
+     * @param agingIntervalMs Queued time after which a request is treated as one priority higher
+     * @see AgingPriorityBlockingQueue
+     */
+    public void setNetworkPriorityAging(long agingIntervalMs) {
+        checkNotStarted();
+        checkDefaultNetworkQueue();
+        mNetworkQueue = new AgingPriorityBlockingQueue(agingIntervalMs);
+    }
+
+    /**
+     * Returns how long the network requests of the given original priority waited in the network
+     * queue, or null if {@link #setNetworkPriorityAging(long)} was not called.
+     */
+    public AgingPriorityBlockingQueue.WaitStats getNetworkWaitStats(Request.Priority priority) {
+        BlockingQueue<Request<?>> queue = mNetworkQueue;
+        if (!(queue instanceof AgingPriorityBlockingQueue)) {
+            return null;
+        }
+        return ((AgingPriorityBlockingQueue) queue).getWaitStats(priority);
+    }
+
+    /**
+     * Throws if the network queue has already been replaced by one of the setters above.
+     */
+    private void checkDefaultNetworkQueue() {
+        if (!(mNetworkQueue instanceof PriorityBlockingQueue)) {
+            throw new IllegalStateException("Network queue has already been replaced");
+        }
+    }
+
+    /**
+     * Throws if requests have already been added to or dispatched by this queue; used by the
+     * setters that change how requests are queued.
+     */
+    private void checkNotStarted() {
+        if (mCacheDispatchers != null || mSequenceGenerator.get() != 0) {
+            throw new IllegalStateException("Queues must be set up before the queue is used");
+        }
+    }
+
+    /**
+     * Bounds the number of live requests, that is requests that were added and have not
+     * finished yet, whether they wait in a cache or network queue, wait behind a duplicate, or
+     * are being processed. Requests moved between queues by the dispatchers are never turned
+     * away. Must be called before the first {@link #add(Request)} and {@link #start()}.
+     * 限制队列里面request的总数量，满了之后按照policy来处理新加入的request
+     *
+     * @param capacity Upper bound on the live requests, at least 1
+     * @param policy What to do with a request added while the queue is full
+     * @param blockTimeoutMs How long {@link OverflowPolicy#BLOCK} waits for room
+     */
+    public void setCapacity(int capacity, OverflowPolicy policy, long blockTimeoutMs) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("capacity must be at least 1");
+        }
+        if (policy == OverflowPolicy.BLOCK && blockTimeoutMs <= 0) {
+            throw new IllegalArgumentException("blockTimeoutMs must be positive");
+        }
+        checkNotStarted();
+        synchronized (mCurrentRequests) {
+            mCapacity = capacity;
+            mOverflowPolicy = policy;
+            mBlockTimeoutMs = blockTimeoutMs;
+        }
+    }
+
+    /**
+     * Returns the number of live requests; see {@link #setCapacity}.
+     */
+    public int getLiveRequestCount() {
+        synchronized (mCurrentRequests) {
+            return mCurrentRequests.size();
+        }
+    }
+
+    /**
+     * Returns the number of requests waiting in the cache and network queues, not counting
+     * duplicates parked behind an in flight request or requests being processed.
+     */
+    public int getQueueDepth() {
+        int depth = mNetworkQueue.size();
+        for (PriorityBlockingQueue<Request<?>> queue : mCacheQueues) {
+            depth += queue.size();
+        }
+        return depth;
+    }
+
+    /**
+     * Returns the number of queued requests shed by {@link OverflowPolicy#SHED_LOWEST_PRIORITY}.
+     */
+    public int getShedCount() {
+        return mShedCount.get();
+    }
+
+    /**
+     * Returns the number of requests turned away because the queue was full or stopping.
+     */
+    public int getRejectedCount() {
+        return mRejectedCount.get();
+    }
+
+    /**
+     * Makes room for a new request according to the overflow policy; caller holds the
+     * mCurrentRequests lock.
+     * 按照策略为新的request腾出位置，被挤掉的request放进shed里面，由调用者在锁外面通知
+     *
+     * @param shed Receives the requests removed from their queue to make room
+     * @return false if the new request must be rejected
+     */
+    private boolean admitLocked(Request<?> request, List<Request<?>> shed) {
+        if (mDraining) {
+            return false;
+        }
+        if (mCapacity == 0 || mCurrentRequests.size() < mCapacity) {
+            return true;
+        }
+        switch (mOverflowPolicy) {
+            case SHED_LOWEST_PRIORITY:
+                Request<?> victim = removeLowestPriorityLocked(request.getPriority());
+                if (victim == null) {
+                    return false;
+                }
+                shed.add(victim);
+                return true;
+            case BLOCK:
+                long deadline = SystemClock.elapsedRealtime() + mBlockTimeoutMs;
+                while (mCurrentRequests.size() >= mCapacity) {
+                    if (mDraining) {
+                        return false;
+                    }
+                    long remainingMs = deadline - SystemClock.elapsedRealtime();
+                    if (remainingMs <= 0) {
+                        return false;
+                    }
+                    try {
+                        mCurrentRequests.wait(remainingMs);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        return false;
+                    }
+                }
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Removes the newest queued request of the lowest priority below the given one from its
+     * queue and from the live requests; caller holds the mCurrentRequests lock. Requests being
+     * processed or parked behind a duplicate are left alone.
+     *
+     * @return The removed request, or null if there was none
+     */
+    private Request<?> removeLowestPriorityLocked(Request.Priority priority) {
+        List<Request<?>> candidates = new ArrayList<Request<?>>();
+        for (Request<?> request : mCurrentRequests) {
+            if (request.getPriority().ordinal() < priority.ordinal()) {
+                candidates.add(request);
+            }
+        }
+        Collections.sort(candidates, new Comparator<Request<?>>() {
+            @Override
+            public int compare(Request<?> lhs, Request<?> rhs) {
+                int byPriority = lhs.getPriority().ordinal() - rhs.getPriority().ordinal();
+                return byPriority != 0 ? byPriority : rhs.getSequence() - lhs.getSequence();
+            }
+        });
+        for (Request<?> request : candidates) {
+            // A cacheable request may have moved on to the network queue after a cache miss.
+            boolean removed = mNetworkQueue.remove(request)
+                    || (request.shouldCache()
+                            && cacheQueueFor(request.getCacheKey()).remove(request));
+            if (removed) {
+                mCurrentRequests.remove(request);
+                mTagIndex.remove(request.getTag(), request);
+                return request;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Enables or disables response fan-out for coalesced requests.
+     *
+     * <p>When enabled, a request that receives a final response which may be served from cache
+     * hands it directly to the duplicates waiting on its cache key. Each waiting request parses
+     * the raw {@link NetworkResponse} itself, so requests that parse differently (such as image
+     * requests decoding to different sizes) each get their own result. When disabled (the
+     * default), waiting requests are re-queued on the cache queue once the in flight request
+     * finishes.</p>
+     * 开启之后，N个相同的请求只会读一次磁盘，每个request各自解析
+     */
+    public void setResponseFanOutEnabled(boolean enabled) {
+        mResponseFanOutEnabled = enabled;
+    }
+
     /**
      * A simple predicate or filter interface for Requests, for use by
      * {@link RequestQueue#cancelAll(RequestFilter)}.
@@ -287,6 +883,29 @@ public class RequestQueue {
         public boolean apply(Request<?> request);
     }
 
+    /**
+     * Fails a request that was turned away or shed.
+     * 被拒绝的request从来没有进入过队列，要先清掉它的mRequestQueue，避免finish()的时候释放别的request的cacheKey
+     * 被挤掉的request照常finish，这样等在它后面的重复request会被重新放回缓存队列
+     *
+     * @param shed true if the request was admitted earlier and has been removed from its queue,
+     *         false if it is being turned away by {@link #add(Request)}
+     */
+    private void overflow(Request<?> request, boolean shed) {
+        if (shed) {
+            mShedCount.incrementAndGet();
+            request.addMarker("add-shed");
+            mDelivery.postError(request,
+                    new QueueOverflowError("Shed for a higher priority request"));
+        } else {
+            mRejectedCount.incrementAndGet();
+            request.setRequestQueue(null);
+            request.addMarker("add-rejected");
+            mDelivery.postError(request, new QueueOverflowError(
+                    mDraining ? "Request queue is stopping" : "Request queue is full"));
+        }
+    }
+
     /**
      * Cancels all requests in this queue for which the given filter applies.
      * 从外面传入一个RequestFilter
@@ -312,12 +931,25 @@ public class RequestQueue {
         if (tag == null) {
             throw new IllegalArgumentException("Cannot cancelAll with a null tag");
         }
-        cancelAll(new RequestFilter() {
-            @Override
-            public boolean apply(Request<?> request) {
-                return request.getTag() == tag;
+        // Only touches the requests carrying this tag, without locking mCurrentRequests.
+        for (Request<?> request : mTagIndex.get(tag)) {
+            request.cancel();
+        }
+    }
+
+    /**
+     * Called from {@link Request#setTag(Object)} when the tag of a request that belongs to this
+     * queue changes, to keep the tag index in step.
+     */
+    void onTagChanged(Request<?> request, Object oldTag, Object newTag) {
+        synchronized (mCurrentRequests) {
+            // Drop the old entry even if the request finished meanwhile, since finish() may
+            // already have looked it up under the new tag.
+            mTagIndex.remove(oldTag, request);
+            if (mCurrentRequests.contains(request)) {
+                mTagIndex.add(newTag, request);
             }
-        });
+        }
     }
 
     /**
@@ -344,10 +976,6 @@ public class RequestQueue {
          * 另一个线程必须等待当前线程执行完这个代码块以后才能执行该代码块。
          * 
          */
-        synchronized (mCurrentRequests) {
-            mCurrentRequests.add(request);
-        }
-
         /**
          * Process requests in the order they are added.
          * 在加入到mCurrentQueue中排队的时候
@@ -355,6 +983,23 @@ public class RequestQueue {
          * 只是这里用了getSequenceNumber()函数来自动的发放号码牌
          */
         request.setSequence(getSequenceNumber());
+
+        List<Request<?>> shed = new ArrayList<Request<?>>(1);
+        boolean admitted;
+        synchronized (mCurrentRequests) {
+            admitted = admitLocked(request, shed);
+            if (admitted) {
+                mCurrentRequests.add(request);
+                mTagIndex.add(request.getTag(), request);
+            }
+        }
+        for (Request<?> victim : shed) {
+            overflow(victim, true);
+        }
+        if (!admitted) {
+            overflow(request, false);
+            return request;
+        }
         request.addMarker("add-to-queue");
 
         /** 
@@ -370,57 +1015,109 @@ public class RequestQueue {
              * 并且返回该request
              */
             mNetworkQueue.add(request);
+            onNetworkRequestsQueued();
             return request;
         }
 
         /**
          * Insert request into stage if there's already a request with the same cache key in flight.
-         * = =尼玛我这是什么记性，看见这个mWaittingRequests居然不认识了
-         * 向前翻到变量声明的地方，清清楚楚的写着专门存放重复请求的地方
          * 根据需要缓存的request生成的特殊标记cacheKey
-         * 当然不涉及到缓存的request在上面几行代码被过滤处理了
+         * 看看有没有和它相同的request已经处于天上飞的状态了
+         * 如果有，这个request就放到等待队列里面坐等数据，不会再被放入到缓存队列中去了
+         * 如果没有，这个request就成为in flight的那一个，放入cacheKey对应的缓存队列
+         * 锁只会锁住cacheKey所在的那一段，不会锁住整个筹备区域
          */
-        synchronized (mWaitingRequests) {
+        if (mWaitingRequests.markInFlightOrStage(request.getCacheKey(), request)) {
+            cacheQueueFor(request.getCacheKey()).add(request);
+        }
+        return request;
+    }
 
-            /**
-             * 先获取到这个request的cacheKey
-             * 看看有没有和它相同的request已经处于天上飞的状态了
-             * (我觉得这里的in flight应该说的是已经发送过了的)
-             * 在后面会说明
-             */
-            String cacheKey = request.getCacheKey();
+    /**
+     * Adds a batch of Requests to the dispatch queue.
+     * 批量添加request
+     * 一次性发放所有的号码牌，每个集合只加一次锁，批量里面相同cacheKey的request也会被合并
+     *
+     * <p>Equivalent to calling {@link #add(Request)} for every request in iteration order, but
+     * sequence numbers are reserved in one step, {@link #mCurrentRequests} is locked once, each
+     * stripe of the waiting-request stage is locked at most once, and duplicate cache keys within
+     * the batch are staged behind the first request for that key. With a capacity set, requests
+     * are admitted one by one as by {@link #add(Request)}.</p>
+     *
+     * @param requests The requests to service
+     */
+    public void addAll(Collection<? extends Request<?>> requests) {
+        int count = requests.size();
+        if (count == 0) {
+            return;
+        }
+        // Reserve a contiguous block of sequence numbers; getSequenceNumber() hands out
+        // incrementAndGet() values, so the block starts right after the old value.
+        int sequence = mSequenceGenerator.getAndAdd(count);
+        for (Request<?> request : requests) {
+            request.setRequestQueue(this);
+            request.setSequence(++sequence);
+        }
 
-            if (mWaitingRequests.containsKey(cacheKey)) {
-
-                /**
-                 * There is already a request in flight. Queue up.
-                 * 如果在等待的队列里面存在着cacheKey对应的一个Queue
-                 * 则说明在这个request之前，已经有相同的request发送出去过了
-                 * 那么现在需要做的就是将这个request加入到cacheKey对应的Queue存起来
-                 * 如果对应的Queue是null,就自己创建一个新的，再把request放入
-                 * 
-                 * 这个request就不再会被放入到mCacheQueue中去了
-                 * 就是坐等数据的意思= =
-                 */
-                Queue<Request<?>> stagedRequests = mWaitingRequests.get(cacheKey);
-                if (stagedRequests == null) {
-                    stagedRequests = new LinkedList<Request<?>>();
-                }
-                stagedRequests.add(request);
-                mWaitingRequests.put(cacheKey, stagedRequests);
-                if (VolleyLog.DEBUG) {
-                    VolleyLog.v("Request for cacheKey=%s is in flight, putting on hold.", cacheKey);
+        // The capacity and drain checks are made under the same lock that admits the batch, so
+        // that a concurrent setCapacity() or stop(long) cannot be slipped past.
+        boolean admitted;
+        synchronized (mCurrentRequests) {
+            admitted = mCapacity == 0 && !mDraining;
+            if (admitted) {
+                for (Request<?> request : requests) {
+                    mCurrentRequests.add(request);
+                    mTagIndex.add(request.getTag(), request);
                 }
+            }
+        }
+        if (!admitted) {
+            // Admission is decided request by request.
+            for (Request<?> request : requests) {
+                add(request);
+            }
+            return;
+        }
+
+        List<Request<?>> cacheable = new ArrayList<Request<?>>(count);
+        List<Request<?>> uncacheable = new ArrayList<Request<?>>();
+        for (Request<?> request : requests) {
+            request.addMarker("add-to-queue");
+            if (request.shouldCache()) {
+                cacheable.add(request);
             } else {
-                /**
-                 * Insert 'null' queue for this cacheKey, indicating there is now a request in flight.
-                 * 如果这个涉及到cache的request在它之前根本就没有和他相同的request
-                 * 直接以这个cacheKey为key，放一个null进去
-                 */
-                mWaitingRequests.put(cacheKey, null);
-                mCacheQueue.add(request);
+                uncacheable.add(request);
             }
-            return request;
+        }
+
+        if (!uncacheable.isEmpty()) {
+            mNetworkQueue.addAll(uncacheable);
+            onNetworkRequestsQueued();
+        }
+        if (cacheable.isEmpty()) {
+            return;
+        }
+
+        List<Request<?>> inFlight = mWaitingRequests.markInFlightOrStageAll(cacheable);
+        if (mCacheQueues.length == 1) {
+            mCacheQueues[0].addAll(inFlight);
+            return;
+        }
+        // Group by shard so that each cache queue receives its part of the batch at once.
+        Map<PriorityBlockingQueue<Request<?>>, List<Request<?>>> byShard =
+                new HashMap<PriorityBlockingQueue<Request<?>>, List<Request<?>>>();
+        for (Request<?> request : inFlight) {
+            PriorityBlockingQueue<Request<?>> queue = cacheQueueFor(request.getCacheKey());
+            List<Request<?>> shard = byShard.get(queue);
+            if (shard == null) {
+                shard = new ArrayList<Request<?>>();
+                byShard.put(queue, shard);
+            }
+            shard.add(request);
+        }
+        for (Map.Entry<PriorityBlockingQueue<Request<?>>, List<Request<?>>> entry
+                : byShard.entrySet()) {
+            entry.getKey().addAll(entry.getValue());
         }
     }
 
@@ -441,17 +1138,25 @@ public class RequestQueue {
          * 将已经结束的request从队列中移除
          */
         synchronized (mCurrentRequests) {
-            mCurrentRequests.remove(request);
+            if (mCurrentRequests.remove(request)) {
+                mTagIndex.remove(request.getTag(), request);
+                if (mCapacity > 0 || mDraining) {
+                    // Wake up callers blocked in add() waiting for room, or in stop(long).
+                    mCurrentRequests.notifyAll();
+                }
+            }
         }
 
         /**
          * 通知所有注册过的监听器
          * 告诉它们，request已经finish了
          */
-        synchronized (mFinishedListeners) {
-          for (RequestFinishedListener<T> listener : mFinishedListeners) {
-            listener.onRequestFinished(request);
-          }
+        FinishedListenerDispatcher.notifyListeners(mInternalFinishedListeners, request);
+        FinishedListenerDispatcher dispatcher = mFinishedListenerDispatcher;
+        if (dispatcher != null) {
+            dispatcher.dispatch(request);
+        } else {
+            FinishedListenerDispatcher.notifyListeners(mFinishedListeners, request);
         }
 
         /**
@@ -460,19 +1165,75 @@ public class RequestQueue {
          * 全部remove
          */
         if (request.shouldCache()) {
-            synchronized (mWaitingRequests) {
-                String cacheKey = request.getCacheKey();
-                Queue<Request<?>> waitingRequests = mWaitingRequests.remove(cacheKey);
-                if (waitingRequests != null) {
-                    if (VolleyLog.DEBUG) {
-                        VolleyLog.v("Releasing %d waiting requests for cacheKey=%s.",
-                                waitingRequests.size(), cacheKey);
-                    }
-                    // Process all queued up requests. They won't be considered as in flight, but
-                    // that's not a problem as the cache has been primed by 'request'.
-                    mCacheQueue.addAll(waitingRequests);
+            String cacheKey = request.getCacheKey();
+            Queue<Request<?>> waitingRequests = mWaitingRequests.release(cacheKey, request);
+            if (waitingRequests != null) {
+                if (VolleyLog.DEBUG) {
+                    VolleyLog.v("Releasing %d waiting requests for cacheKey=%s.",
+                            waitingRequests.size(), cacheKey);
                 }
+                // Process all queued up requests. They won't be considered as in flight, but
+                // that's not a problem as the cache has been primed by 'request'.
+                cacheQueueFor(cacheKey).addAll(waitingRequests);
+            }
+        }
+    }
+
+    /**
+     * Called from {@link Request#notifyResponseReceived(NetworkResponse, Response)} by the
+     * dispatchers once a final response has been posted for the given request.
+     * 在dispatcher把最终的response交付出去之后调用
+     * 如果开启了fan-out，就把等待中的重复request直接从筹备区域里面取出来，把结果交给它们
+     *
+     * @param request The request that was in flight for its cache key
+     * @param networkResponse The raw response, parsed again by each waiting request
+     * @param response The response that was posted for the request
+     */
+    void onResponseReceived(Request<?> request, NetworkResponse networkResponse,
+            Response<?> response) {
+        if (!mResponseFanOutEnabled || !request.shouldCache()) {
+            return;
+        }
+        // Only responses that the cache would serve are fanned out; everything else keeps the
+        // old path where duplicates are re-queued once the in flight request finishes.
+        if (response.intermediate || !response.isSuccess() || response.cacheEntry == null
+                || response.cacheEntry.isExpired()) {
+            return;
+        }
+        String cacheKey = request.getCacheKey();
+        // The owner keeps the in flight mark until it finishes, so that no new owner can take
+        // over the key while it is still being processed.
+        Queue<Request<?>> waitingRequests = mWaitingRequests.takeStaged(cacheKey, request);
+        if (waitingRequests == null) {
+            return;
+        }
+        if (VolleyLog.DEBUG) {
+            VolleyLog.v("Fanning out response to %d waiting requests for cacheKey=%s.",
+                    waitingRequests.size(), cacheKey);
+        }
+        for (Request<?> waiting : waitingRequests) {
+            if (waiting.isCanceled()) {
+                waiting.finish("fan-out-discard-canceled");
+                continue;
+            }
+            // Every waiter parses the raw bytes itself, since requests of the same type can still
+            // parse differently (ImageRequests decoding to different sizes, for example).
+            // 同一个类型的request解析的结果也可能不一样，所以每个request都用自己的parseNetworkResponse()
+            Response<?> waitingResponse;
+            try {
+                waitingResponse = waiting.parseNetworkResponse(networkResponse);
+            } catch (Exception e) {
+                VolleyLog.e(e, "Unhandled exception %s", e.toString());
+                waitingResponse = null;
+            }
+            // A parse failure comes back as Response.error(); let the request take the normal
+            // path, which reports its own error.
+            if (waitingResponse == null || !waitingResponse.isSuccess()) {
+                cacheQueueFor(cacheKey).add(waiting);
+                continue;
             }
+            waiting.addMarker("fan-out-response");
+            mDelivery.postResponse(waiting, waitingResponse);
         }
     }
 
@@ -480,17 +1241,40 @@ public class RequestQueue {
      * 下面两个方法就是所谓注册监听器和取消注册的函数
      */
     public  <T> void addRequestFinishedListener(RequestFinishedListener<T> listener) {
-      synchronized (mFinishedListeners) {
         mFinishedListeners.add(listener);
-      }
     }
 
     /**
      * Remove a RequestFinishedListener. Has no effect if listener was not previously added.
      */
     public  <T> void removeRequestFinishedListener(RequestFinishedListener<T> listener) {
-      synchronized (mFinishedListeners) {
         mFinishedListeners.remove(listener);
-      }
+    }
+
+    /**
+     * Runs the {@link RequestFinishedListener}s on the given executor instead of on the thread
+     * that finishes the request, so that slow listeners do not hold up request completion.
+     * Finished requests are buffered in a ring of {@code bufferSize} entries and delivered one
+     * at a time, in finishing order; when the ring is full the notification is dropped and
+     * counted by {@link #getDroppedFinishedNotificationCount()}. An exception thrown by a
+     * listener on the executor is logged, since no caller is waiting for it; without an executor
+     * it propagates out of the finishing call as before.
+     * 在指定的Executor上面通知listener，finish()不再等待listener执行完
+     *
+     * @param executor Executor the listeners run on, or null to run them on the finishing thread
+     * @param bufferSize Number of notifications that may wait for the executor
+     */
+    public void setRequestFinishedListenerExecutor(Executor executor, int bufferSize) {
+        mFinishedListenerDispatcher = executor == null ? null
+                : new FinishedListenerDispatcher(executor, mFinishedListeners, bufferSize);
+    }
+
+    /**
+     * Returns the number of listener notifications dropped because the buffer given to
+     * {@link #setRequestFinishedListenerExecutor(Executor, int)} was full.
+     */
+    public int getDroppedFinishedNotificationCount() {
+        FinishedListenerDispatcher dispatcher = mFinishedListenerDispatcher;
+        return dispatcher == null ? 0 : dispatcher.getDroppedCount();
     }
 }
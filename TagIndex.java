@@ -0,0 +1,110 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Secondary index from request tag to the live requests carrying it.
+ * 从tag到当前还在处理中的request的索引
+ * 这样按照tag取消request的时候只需要处理tag对应的那些request，不用扫描整个mCurrentRequests
+ *
+ * <p>Tags are compared by identity, like {@link RequestQueue#cancelAll(Object)} always did.
+ * Writers must be serialized by the caller (the queue holds its current-requests lock), which
+ * keeps removal of emptied entries simple; readers only take the lock of the tag's own set.</p>
+ */
+class TagIndex {
+
+    /**
+     * Wraps a tag so that the map uses identity instead of {@link Object#equals(Object)}.
+     */
+    private static final class TagKey {
+        private final Object mTag;
+
+        TagKey(Object tag) {
+            mTag = tag;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof TagKey && ((TagKey) o).mTag == mTag;
+        }
+
+        @Override
+        public int hashCode() {
+            return System.identityHashCode(mTag);
+        }
+    }
+
+    /** Live requests per tag; each set is guarded by its own monitor. */
+    private final ConcurrentHashMap<TagKey, Set<Request<?>>> mRequests =
+            new ConcurrentHashMap<TagKey, Set<Request<?>>>();
+
+    /**
+     * Indexes the request under the given tag. Requests without a tag are not indexed.
+     */
+    void add(Object tag, Request<?> request) {
+        if (tag == null) {
+            return;
+        }
+        TagKey key = new TagKey(tag);
+        Set<Request<?>> requests = mRequests.get(key);
+        if (requests == null) {
+            requests = new HashSet<Request<?>>();
+            mRequests.put(key, requests);
+        }
+        synchronized (requests) {
+            requests.add(request);
+        }
+    }
+
+    /**
+     * Removes the request from the given tag's entry, dropping the entry once it is empty.
+     */
+    void remove(Object tag, Request<?> request) {
+        if (tag == null) {
+            return;
+        }
+        TagKey key = new TagKey(tag);
+        Set<Request<?>> requests = mRequests.get(key);
+        if (requests == null) {
+            return;
+        }
+        synchronized (requests) {
+            if (requests.remove(request) && requests.isEmpty()) {
+                mRequests.remove(key);
+            }
+        }
+    }
+
+    /**
+     * Returns a snapshot of the live requests with the given tag.
+     */
+    List<Request<?>> get(Object tag) {
+        Set<Request<?>> requests = mRequests.get(new TagKey(tag));
+        if (requests == null) {
+            return new ArrayList<Request<?>>(0);
+        }
+        synchronized (requests) {
+            return new ArrayList<Request<?>>(requests);
+        }
+    }
+}
@@ -0,0 +1,241 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+
+/**
+ * Lock-striped staging area for requests that already have a duplicate request in flight.
+ * 按照cacheKey的hash值把筹备区域拆分成若干段(stripe)，每一段有自己的锁
+ * 这样不同cacheKey的request在add()和finish()的时候基本不会抢同一把锁
+ *
+ * <ul>
+ *     <li>A key that is present indicates that there is a request in flight for it; the slot
+ *         remembers which request that is, and only that request can release it.</li>
+ *     <li>The slot's queue holds the waiting duplicates; the in flight request is
+ *         <em>not</em> contained in it. The queue is null if nothing is staged yet.</li>
+ * </ul>
+ */
+class WaitingRequestMap {
+
+    /** Default number of lock stripes; a power of two. */
+    private static final int DEFAULT_STRIPE_COUNT = 32;
+
+    /**
+     * One segment of the map, guarded by its own monitor.
+     * 每一段都是一个普通的HashMap，用段对象本身作为锁
+     */
+    private static final class Stripe {
+        final Map<String, Slot> requests = new HashMap<String, Slot>();
+    }
+
+    /**
+     * The in flight request of a cache key and the duplicates staged behind it.
+     * 记住是哪个request占着这个cacheKey，别的request结束的时候不能把它的标记清掉
+     */
+    private static final class Slot {
+        final Request<?> owner;
+        Queue<Request<?>> staged;
+
+        Slot(Request<?> owner) {
+            this.owner = owner;
+        }
+
+        void stage(Request<?> request) {
+            if (staged == null) {
+                staged = new ArrayDeque<Request<?>>();
+            }
+            staged.add(request);
+        }
+    }
+
+    private final Stripe[] mStripes;
+
+    /** Mask used to map a spread hash code onto a stripe index. */
+    private final int mStripeMask;
+
+    WaitingRequestMap() {
+        this(DEFAULT_STRIPE_COUNT);
+    }
+
+    /**
+     * @param stripeCount Number of lock stripes, rounded up to a power of two
+     */
+    WaitingRequestMap(int stripeCount) {
+        int size = 1;
+        while (size < stripeCount) {
+            size <<= 1;
+        }
+        mStripes = new Stripe[size];
+        for (int i = 0; i < size; i++) {
+            mStripes[i] = new Stripe();
+        }
+        mStripeMask = size - 1;
+    }
+
+    /**
+     * Marks the request's cache key as in flight, or parks the request behind the one that
+     * already is.
+     * 如果这个cacheKey还没有request在处理，就把它标记为in flight并返回true，调用者需要把request放进缓存队列
+     * 如果已经有相同cacheKey的request在处理了，就把这个request放到等待队列里面，返回false
+     *
+     * @return true if the caller now owns the in flight slot and must dispatch the request,
+     *         false if the request was staged behind an in flight duplicate
+     */
+    boolean markInFlightOrStage(String cacheKey, Request<?> request) {
+        Stripe stripe = stripeFor(cacheKey);
+        synchronized (stripe) {
+            Slot slot = stripe.requests.get(cacheKey);
+            if (slot == null) {
+                // Insert an empty slot for this cacheKey, indicating there is now a request in
+                // flight.
+                stripe.requests.put(cacheKey, new Slot(request));
+                return true;
+            }
+            slot.stage(request);
+        }
+        if (VolleyLog.DEBUG) {
+            VolleyLog.v("Request for cacheKey=%s is in flight, putting on hold.", cacheKey);
+        }
+        return false;
+    }
+
+    /**
+     * Batch version of {@link #markInFlightOrStage(String, Request)}. Requests are grouped by
+     * stripe so that each stripe's lock is taken at most once; duplicates within the batch are
+     * staged behind the first of them.
+     * 批量处理：先按照所在的段分组，每一段只加一次锁
+     *
+     * @param requests Cacheable requests, in the order they were added
+     * @return The requests that now own the in flight slot for their key and must be dispatched
+     */
+    List<Request<?>> markInFlightOrStageAll(List<Request<?>> requests) {
+        @SuppressWarnings({"rawtypes", "unchecked"}) // Java has no generic array creation.
+        List<Request<?>>[] byStripe = new List[mStripes.length];
+        for (Request<?> request : requests) {
+            int index = stripeIndex(request.getCacheKey());
+            if (byStripe[index] == null) {
+                byStripe[index] = new ArrayList<Request<?>>();
+            }
+            byStripe[index].add(request);
+        }
+
+        List<Request<?>> inFlight = new ArrayList<Request<?>>(requests.size());
+        int staged = 0;
+        for (int i = 0; i < byStripe.length; i++) {
+            if (byStripe[i] == null) {
+                continue;
+            }
+            Stripe stripe = mStripes[i];
+            synchronized (stripe) {
+                for (Request<?> request : byStripe[i]) {
+                    String cacheKey = request.getCacheKey();
+                    Slot slot = stripe.requests.get(cacheKey);
+                    if (slot == null) {
+                        stripe.requests.put(cacheKey, new Slot(request));
+                        inFlight.add(request);
+                        continue;
+                    }
+                    slot.stage(request);
+                    staged++;
+                }
+            }
+        }
+        if (VolleyLog.DEBUG && staged > 0) {
+            VolleyLog.v("Putting %d of %d batched requests on hold.", staged, requests.size());
+        }
+        return inFlight;
+    }
+
+    /**
+     * Clears the in flight mark for the given key and hands back everything staged behind it,
+     * if the given request holds the mark.
+     * 清除cacheKey的in flight标记，并把等待中的request全部返回
+     * 只有占着标记的request才能清除它
+     *
+     * @param owner The request finishing
+     * @return The waiting requests, or null if none were staged or owner does not hold the mark
+     */
+    Queue<Request<?>> release(String cacheKey, Request<?> owner) {
+        Stripe stripe = stripeFor(cacheKey);
+        synchronized (stripe) {
+            Slot slot = stripe.requests.get(cacheKey);
+            if (slot == null || slot.owner != owner) {
+                return null;
+            }
+            stripe.requests.remove(cacheKey);
+            return slot.staged;
+        }
+    }
+
+    /**
+     * Hands back everything staged behind the given in flight request, which keeps the in
+     * flight mark until it is released. Duplicates added afterwards are staged as usual.
+     * 把等待中的request取出来，但是in flight标记保留，直到owner结束的时候再release
+     *
+     * @return The waiting requests, or null if none were staged or owner does not hold the mark
+     */
+    Queue<Request<?>> takeStaged(String cacheKey, Request<?> owner) {
+        Stripe stripe = stripeFor(cacheKey);
+        synchronized (stripe) {
+            Slot slot = stripe.requests.get(cacheKey);
+            if (slot == null || slot.owner != owner) {
+                return null;
+            }
+            Queue<Request<?>> staged = slot.staged;
+            slot.staged = null;
+            return staged;
+        }
+    }
+
+    /**
+     * Forgets a request that will not finish normally: clears its in flight mark if it holds
+     * one, and otherwise unstages it. Whatever was staged behind it is dropped with the mark.
+     * 把一个不会正常结束的request从筹备区域里面彻底清除，避免后来的request一直等它
+     */
+    void purge(Request<?> request) {
+        String cacheKey = request.getCacheKey();
+        Stripe stripe = stripeFor(cacheKey);
+        synchronized (stripe) {
+            Slot slot = stripe.requests.get(cacheKey);
+            if (slot == null) {
+                return;
+            }
+            if (slot.owner == request) {
+                stripe.requests.remove(cacheKey);
+            } else if (slot.staged != null) {
+                slot.staged.remove(request);
+            }
+        }
+    }
+
+    private Stripe stripeFor(String cacheKey) {
+        return mStripes[stripeIndex(cacheKey)];
+    }
+
+    private int stripeIndex(String cacheKey) {
+        // Spread the higher bits downwards so the stripe depends on the whole hash code.
+        int h = cacheKey.hashCode();
+        h ^= (h >>> 16);
+        return h & mStripeMask;
+    }
+}
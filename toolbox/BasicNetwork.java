@@ -244,7 +244,7 @@ public class BasicNetwork implements Network {
                      * 将其转换成byte数组
                      * 利用之前提到过的ByteArrayPool.java类
                      */
-                  responseContents = entityToBytes(httpResponse.getEntity());
+                  responseContents = entityToBytes(request, httpResponse.getEntity());
                 } else {
                   // Add 0 byte response as a way of honestly representing a
                   // no-content request.
@@ -288,6 +288,13 @@ public class BasicNetwork implements Network {
             } catch (MalformedURLException e) {
                 throw new RuntimeException("Bad URL " + request.getUrl(), e);
             } catch (IOException e) {
+                // The connection was torn down by Request.cancel(), or this attempt was
+                // abandoned (e.g. a hedge that lost); don't retry or report it as a connection
+                // problem.
+                if (request.isCanceled() || Thread.currentThread().isInterrupted()) {
+                    request.addMarker("network-aborted");
+                    throw new VolleyError(e);
+                }
                 /**
                  * 状态码在0~200以及299之上的response
                  * 处理的套路
@@ -341,6 +348,9 @@ public class BasicNetwork implements Network {
                 } else {
                     throw new NetworkError(networkResponse);
                 }
+            } finally {
+                // The body has been read or abandoned; nothing left to abort.
+                request.setAbortAction(null);
             }
         }
     }
@@ -421,7 +431,8 @@ public class BasicNetwork implements Network {
      * 从HttpEntity中读取数据，并通过ByteArrayPool将其转换成byte[]
      * 暂时不用管太多= =，等后面介绍到ByteArrayPool.java的时候就会明白
      */
-    private byte[] entityToBytes(HttpEntity entity) throws IOException, ServerError {
+    private byte[] entityToBytes(Request<?> request, HttpEntity entity)
+            throws IOException, ServerError {
 
         PoolingByteArrayOutputStream bytes =
                 new PoolingByteArrayOutputStream(mPool, (int) entity.getContentLength());
@@ -442,6 +453,10 @@ public class BasicNetwork implements Network {
             int count;
             //将content的内容通过流每次最大读出1024个byte, 全部读出并写入bytes
             while ((count = in.read(buffer)) != -1) {
+                // Stop reading as soon as nobody wants the body any more.
+                if (request.isCanceled() || Thread.currentThread().isInterrupted()) {
+                    throw new IOException("Request cancelled while reading the response body");
+                }
                 bytes.write(buffer, 0, count);
             }
             return bytes.toByteArray();
@@ -458,7 +473,7 @@ public class BasicNetwork implements Network {
              * 在所有工作完成之后
              * 需要将从mPool中拿出的buffer缓冲区回收
              */
-            mPool.d(buffer);
+            mPool.returnBuf(buffer);
             bytes.close();
         }
     }
@@ -0,0 +1,55 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley.toolbox;
+
+import com.android.volley.NetworkResponse;
+import com.android.volley.Request;
+import com.android.volley.VolleyError;
+
+import java.util.List;
+
+/**
+ * Turns several requests into one batch call and its response back into one response per
+ * request, for {@link BatchingNetwork}. The format is defined by the API being called.
+ * 把多个request合并成一个批量请求，再把批量请求的结果拆分成每个request各自的NetworkResponse
+ */
+public interface BatchCodec {
+
+    /**
+     * Returns the key of the batch the request may join, for example the API host; null if the
+     * request must be sent on its own.
+     */
+    public String getBatchKey(Request<?> request);
+
+    /**
+     * Builds the request that carries the whole batch. Only its method, URL, headers, body,
+     * timeout and retry policy are used.
+     *
+     * @param requests Two or more requests with the same batch key, in the order they arrived
+     */
+    public Request<?> encode(List<Request<?>> requests) throws VolleyError;
+
+    /**
+     * Splits the response to the batch call.
+     *
+     * @param requests The requests passed to {@link #encode(List)}
+     * @param batchResponse The response to the request returned by {@link #encode(List)}
+     * @return One response per request, in the same order
+     */
+    public List<NetworkResponse> decode(List<Request<?>> requests, NetworkResponse batchResponse)
+            throws VolleyError;
+}
@@ -0,0 +1,234 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley.toolbox;
+
+import com.android.volley.AsyncNetwork;
+import com.android.volley.Network;
+import com.android.volley.NetworkResponse;
+import com.android.volley.Request;
+import com.android.volley.VolleyError;
+import com.android.volley.VolleyLog;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * An {@link AsyncNetwork} that collects requests with the same {@link BatchCodec} batch key for
+ * a short window, or until a size limit is reached, and sends them as one call.
+ * 批量请求：同一个batch key的request在一个很短的时间窗口内攒起来，通过一次网络请求发出去
+ * 批量返回的结果再拆分成每个request各自的NetworkResponse，每个request还是用自己的
+ * parseNetworkResponse()解析，写自己的缓存
+ *
+ * <p>Use it with an {@link com.android.volley.AsyncNetworkDispatcher} so that enough requests
+ * are in flight at once to fill a batch. Requests without a batch key, and batches that end up
+ * with a single request, are performed on their own. Requests canceled while waiting for
+ * their batch are left out of it. Requests the executor rejects, for example after it was shut
+ * down, fail through their callbacks.</p>
+ */
+public class BatchingNetwork implements AsyncNetwork {
+
+    /** A request waiting for its batch, with its callback. */
+    private static class Pending {
+        final Request<?> request;
+        final OnRequestComplete callback;
+
+        Pending(Request<?> request, OnRequestComplete callback) {
+            this.request = request;
+            this.callback = callback;
+        }
+    }
+
+    private final Network mNetwork;
+    private final BatchCodec mCodec;
+    private final ScheduledExecutorService mExecutor;
+    private final long mWindowMs;
+    private final int mMaxBatchSize;
+
+    /** Batches being collected, by batch key; guarded by itself. */
+    private final Map<String, List<Pending>> mBatches = new HashMap<String, List<Pending>>();
+
+    /**
+     * @param network The blocking network that performs single and batch calls
+     * @param codec Encodes and decodes batch calls
+     * @param executor Runs the calls and closes batches once their window has passed
+     * @param windowMs How long the first request of a batch waits for others to join
+     * @param maxBatchSize Number of requests at which a batch is sent right away
+     */
+    public BatchingNetwork(Network network, BatchCodec codec, ScheduledExecutorService executor,
+            long windowMs, int maxBatchSize) {
+        if (windowMs < 0 || maxBatchSize < 2) {
+            throw new IllegalArgumentException("Need windowMs >= 0 and maxBatchSize >= 2");
+        }
+        mNetwork = network;
+        mCodec = codec;
+        mExecutor = executor;
+        mWindowMs = windowMs;
+        mMaxBatchSize = maxBatchSize;
+    }
+
+    @Override
+    public void performRequest(final Request<?> request, final OnRequestComplete callback) {
+        final String key = mCodec.getBatchKey(request);
+        if (key == null) {
+            try {
+                mExecutor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        performSingle(new Pending(request, callback));
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                callback.onError(new VolleyError("Network executor rejected the request", e));
+            }
+            return;
+        }
+
+        final List<Pending> batch;
+        boolean full;
+        boolean opened = false;
+        synchronized (mBatches) {
+            List<Pending> open = mBatches.get(key);
+            if (open == null) {
+                open = new ArrayList<Pending>(mMaxBatchSize);
+                mBatches.put(key, open);
+                opened = true;
+            }
+            open.add(new Pending(request, callback));
+            full = open.size() >= mMaxBatchSize;
+            if (full) {
+                mBatches.remove(key);
+            }
+            batch = open;
+        }
+        request.addMarker("network-batch-join");
+
+        if (full) {
+            try {
+                mExecutor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        send(batch);
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                fail(batch, new VolleyError("Network executor rejected the batch", e));
+            }
+        } else if (opened) {
+            try {
+                mExecutor.schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        // The batch may have been sent already because it filled up.
+                        if (close(key, batch)) {
+                            send(batch);
+                        }
+                    }
+                }, mWindowMs, TimeUnit.MILLISECONDS);
+            } catch (RejectedExecutionException e) {
+                // 没有人会关闭这个batch了，已经加入的request都要失败，不然永远等不到回调
+                if (close(key, batch)) {
+                    fail(batch, new VolleyError("Network executor rejected the batch", e));
+                }
+            }
+        }
+    }
+
+    /**
+     * Stops a batch from taking more requests; returns false if it was closed already, in which
+     * case whoever closed it handles its requests.
+     */
+    private boolean close(String key, List<Pending> batch) {
+        synchronized (mBatches) {
+            if (mBatches.get(key) != batch) {
+                return false;
+            }
+            mBatches.remove(key);
+            return true;
+        }
+    }
+
+    /** Sends a closed batch and hands every request its part of the response. */
+    private void send(List<Pending> batch) {
+        List<Pending> live = new ArrayList<Pending>(batch.size());
+        for (Pending pending : batch) {
+            if (pending.request.isCanceled()) {
+                pending.callback.onError(new VolleyError("Request cancelled before batch sent"));
+            } else {
+                live.add(pending);
+            }
+        }
+        if (live.isEmpty()) {
+            return;
+        }
+        if (live.size() == 1) {
+            performSingle(live.get(0));
+            return;
+        }
+
+        List<Request<?>> requests = new ArrayList<Request<?>>(live.size());
+        for (Pending pending : live) {
+            requests.add(pending.request);
+        }
+        List<NetworkResponse> responses;
+        try {
+            NetworkResponse batchResponse = mNetwork.performRequest(mCodec.encode(requests));
+            responses = mCodec.decode(requests, batchResponse);
+            if (responses == null || responses.size() != requests.size()) {
+                throw new VolleyError("Batch response does not match the batch");
+            }
+        } catch (VolleyError e) {
+            fail(live, e);
+            return;
+        } catch (RuntimeException e) {
+            VolleyLog.e(e, "Unhandled exception in batch call");
+            fail(live, new VolleyError(e));
+            return;
+        }
+        for (int i = 0; i < live.size(); i++) {
+            Pending pending = live.get(i);
+            pending.request.addMarker("network-batch-complete");
+            pending.callback.onSuccess(responses.get(i));
+        }
+    }
+
+    private void performSingle(Pending pending) {
+        NetworkResponse networkResponse;
+        try {
+            networkResponse = mNetwork.performRequest(pending.request);
+        } catch (VolleyError e) {
+            pending.callback.onError(e);
+            return;
+        } catch (RuntimeException e) {
+            pending.callback.onError(new VolleyError(e));
+            return;
+        }
+        pending.callback.onSuccess(networkResponse);
+    }
+
+    private static void fail(List<Pending> batch, VolleyError error) {
+        for (Pending pending : batch) {
+            // Each request gets its own error, of the same type, since the dispatcher stamps it
+            // with timing and retry policies and listeners look at its class.
+            pending.callback.onError(SingleFlightNetwork.copyOf(error));
+        }
+    }
+}
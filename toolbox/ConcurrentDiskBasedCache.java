@@ -0,0 +1,412 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley.toolbox;
+
+import android.os.SystemClock;
+
+import com.android.volley.Cache;
+import com.android.volley.VolleyLog;
+import com.android.volley.toolbox.DiskBasedCache.CacheHeader;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A variant of {@link DiskBasedCache} without a lock around the whole cache, using the same
+ * file format and file names.
+ * 并发版本的DiskBasedCache：没有一把锁锁住整个缓存
+ * 一个很大的put()不会挡住缓存线程的get()
+ *
+ * <ul>
+ *     <li>Writes, removals and invalidations of a file hold one of a fixed number of striped
+ *         locks, picked by file name; reads take no file lock.</li>
+ *     <li>Files are written under a temporary name and renamed into place, so a reader sees
+ *         either the old or the new file, never a partial one.</li>
+ *     <li>The index is a concurrent map; the LRU order and total size are kept under their
+ *         own short-held lock, and eviction deletes files under their striped locks.</li>
+ * </ul>
+ */
+public class ConcurrentDiskBasedCache implements Cache {
+
+    /** Default maximum disk usage in bytes. */
+    private static final int DEFAULT_DISK_USAGE_BYTES = 5 * 1024 * 1024;
+
+    /** High water mark percentage for the cache. */
+    private static final float HYSTERESIS_FACTOR = 0.9f;
+
+    /** Number of striped file locks. */
+    private static final int LOCK_STRIPES = 32;
+
+    /** Suffix of files being written. */
+    private static final String TMP_SUFFIX = ".tmp";
+
+    /** The root directory to use for the cache. */
+    private final File mRootDirectory;
+
+    /** The maximum size of the cache in bytes. */
+    private final int mMaxCacheSizeInBytes;
+
+    /** Map of the Key, CacheHeader pairs; changed only under the key's file lock. */
+    private final ConcurrentHashMap<String, CacheHeader> mEntries =
+            new ConcurrentHashMap<String, CacheHeader>();
+
+    /** Locks for writing files, by file name. */
+    private final Object[] mFileLocks = new Object[LOCK_STRIPES];
+
+    /** Guards mLru and mTotalSize. */
+    private final Object mLruLock = new Object();
+
+    /** The entries in access order, for eviction. */
+    private final LinkedHashMap<String, CacheHeader> mLru =
+            new LinkedHashMap<String, CacheHeader>(16, .75f, true);
+
+    /** Total amount of space currently used by the cache in bytes. */
+    private long mTotalSize = 0;
+
+    /**
+     * Constructs an instance of the ConcurrentDiskBasedCache at the specified directory.
+     *
+     * @param rootDirectory The root directory of the cache.
+     * @param maxCacheSizeInBytes The maximum size of the cache in bytes.
+     */
+    public ConcurrentDiskBasedCache(File rootDirectory, int maxCacheSizeInBytes) {
+        mRootDirectory = rootDirectory;
+        mMaxCacheSizeInBytes = maxCacheSizeInBytes;
+        for (int i = 0; i < LOCK_STRIPES; i++) {
+            mFileLocks[i] = new Object();
+        }
+    }
+
+    /**
+     * Constructs an instance of the ConcurrentDiskBasedCache at the specified directory using
+     * the default maximum cache size of 5MB.
+     * @param rootDirectory The root directory of the cache.
+     */
+    public ConcurrentDiskBasedCache(File rootDirectory) {
+        this(rootDirectory, DEFAULT_DISK_USAGE_BYTES);
+    }
+
+    /**
+     * Initializes the cache by scanning for all files currently in the specified root
+     * directory. Creates the root directory if necessary.
+     */
+    @Override
+    public void initialize() {
+        if (!mRootDirectory.exists()) {
+            if (!mRootDirectory.mkdirs()) {
+                VolleyLog.e("Unable to create cache dir %s", mRootDirectory.getAbsolutePath());
+            }
+            return;
+        }
+        File[] files = mRootDirectory.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            if (file.getName().endsWith(TMP_SUFFIX)) {
+                // 进程在写文件的时候被杀掉留下来的
+                file.delete();
+                continue;
+            }
+            BufferedInputStream fis = null;
+            try {
+                fis = new BufferedInputStream(new FileInputStream(file));
+                CacheHeader entry = CacheHeader.readHeader(fis);
+                entry.size = file.length();
+                synchronized (lockFor(entry.key)) {
+                    index(entry.key, entry);
+                }
+            } catch (IOException e) {
+                file.delete();
+            } finally {
+                try {
+                    if (fis != null) {
+                        fis.close();
+                    }
+                } catch (IOException ignored) { }
+            }
+        }
+        pruneIfNeeded();
+    }
+
+    /**
+     * Returns the cache entry with the specified key if it exists, null otherwise. The header
+     * is read back from the file, since a put may replace the file while this reads it.
+     * 读文件不加锁：文件是写完之后rename过来的，打开的要么是旧文件要么是新文件，都是完整的
+     */
+    @Override
+    public Entry get(String key) {
+        CacheHeader indexed = mEntries.get(key);
+        if (indexed == null) {
+            return null;
+        }
+        File file = getFileForKey(key);
+        BufferedInputStream is = null;
+        try {
+            FileInputStream fis = new FileInputStream(file);
+            is = new BufferedInputStream(fis);
+            long length = fis.getChannel().size();
+            CacheHeader header = CacheHeader.readHeader(is);
+            if (!key.equals(header.key)) {
+                throw new IOException("Cache file belongs to " + header.key);
+            }
+            long bodySize = length - header.getHeaderSize();
+            if (bodySize < 0 || bodySize > Integer.MAX_VALUE) {
+                throw new IOException("Unexpected cache file size " + length);
+            }
+            byte[] data = DiskBasedCache.streamToBytes(is, (int) bodySize);
+            synchronized (mLruLock) {
+                mLru.get(key);
+            }
+            return header.toCacheEntry(data);
+        } catch (FileNotFoundException e) {
+            // Removed or evicted since we looked it up.
+            removeIfIndexed(key, indexed);
+            return null;
+        } catch (IOException e) {
+            VolleyLog.d("%s: %s", file.getAbsolutePath(), e.toString());
+            removeIfIndexed(key, indexed);
+            return null;
+        } finally {
+            if (is != null) {
+                try {
+                    is.close();
+                } catch (IOException ignored) { }
+            }
+        }
+    }
+
+    /**
+     * Puts the entry with the specified key into the cache.
+     */
+    @Override
+    public void put(String key, Entry entry) {
+        synchronized (lockFor(key)) {
+            write(key, entry);
+        }
+        pruneIfNeeded();
+    }
+
+    /**
+     * Invalidates an entry in the cache.
+     *
+     * @param key Cache key
+     * @param fullExpire True to fully expire the entry, false to soft expire
+     */
+    @Override
+    public void invalidate(String key, boolean fullExpire) {
+        synchronized (lockFor(key)) {
+            Entry entry = get(key);
+            if (entry != null) {
+                entry.softTtl = 0;
+                if (fullExpire) {
+                    entry.ttl = 0;
+                }
+                write(key, entry);
+            }
+        }
+    }
+
+    /**
+     * Removes the specified key from the cache if it exists.
+     */
+    @Override
+    public void remove(String key) {
+        synchronized (lockFor(key)) {
+            boolean deleted = getFileForKey(key).delete();
+            unindex(key);
+            if (!deleted) {
+                VolleyLog.d("Could not delete cache entry for key=%s, filename=%s",
+                        key, DiskBasedCache.getFilenameForKey(key));
+            }
+        }
+    }
+
+    /**
+     * Clears the cache. Deletes all cached files from disk.
+     */
+    @Override
+    public void clear() {
+        clearHoldingLocks(0);
+    }
+
+    /** Takes every file lock, in order, then clears the cache. */
+    private void clearHoldingLocks(int stripe) {
+        if (stripe < LOCK_STRIPES) {
+            synchronized (mFileLocks[stripe]) {
+                clearHoldingLocks(stripe + 1);
+            }
+            return;
+        }
+        File[] files = mRootDirectory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        mEntries.clear();
+        synchronized (mLruLock) {
+            mLru.clear();
+            mTotalSize = 0;
+        }
+        VolleyLog.d("Cache cleared.");
+    }
+
+    /**
+     * Returns a file object for the given cache key.
+     */
+    public File getFileForKey(String key) {
+        return new File(mRootDirectory, DiskBasedCache.getFilenameForKey(key));
+    }
+
+    /**
+     * Writes an entry to a temporary file and renames it over the entry's file; caller holds
+     * the key's file lock.
+     * 先写到临时文件，写完再rename成正式的文件名，读的线程不会看到写了一半的文件
+     */
+    private void write(String key, Entry entry) {
+        File file = getFileForKey(key);
+        File tmp = new File(mRootDirectory, file.getName() + TMP_SUFFIX);
+        CacheHeader header = new CacheHeader(key, entry);
+        OutputStream os = null;
+        try {
+            os = new BufferedOutputStream(new FileOutputStream(tmp));
+            if (!header.writeHeader(os)) {
+                throw new IOException("Failed to write header for " + file.getAbsolutePath());
+            }
+            os.write(entry.data);
+            os.close();
+            os = null;
+            if (!tmp.renameTo(file)) {
+                throw new IOException("Could not rename " + tmp.getAbsolutePath());
+            }
+            index(key, header);
+        } catch (IOException e) {
+            // The previous file, if any, is untouched and still indexed.
+            VolleyLog.d("%s", e.toString());
+            if (os != null) {
+                try {
+                    os.close();
+                } catch (IOException ignored) { }
+            }
+            if (!tmp.delete()) {
+                VolleyLog.d("Could not clean up file %s", tmp.getAbsolutePath());
+            }
+        }
+    }
+
+    /**
+     * Evicts the least recently used entries until the cache is under its high water mark.
+     * Victims are picked under the LRU lock and deleted under their file locks, skipping any
+     * that were put again in between.
+     */
+    private void pruneIfNeeded() {
+        List<CacheHeader> victims;
+        long before;
+        synchronized (mLruLock) {
+            if (mTotalSize < mMaxCacheSizeInBytes) {
+                return;
+            }
+            before = mTotalSize;
+            victims = new ArrayList<CacheHeader>();
+            long remaining = mTotalSize;
+            for (CacheHeader entry : mLru.values()) {
+                victims.add(entry);
+                remaining -= entry.size;
+                if (remaining < mMaxCacheSizeInBytes * HYSTERESIS_FACTOR) {
+                    break;
+                }
+            }
+        }
+        if (VolleyLog.DEBUG) {
+            VolleyLog.v("Pruning old cache entries.");
+        }
+        long startTime = SystemClock.elapsedRealtime();
+        int prunedFiles = 0;
+        for (CacheHeader victim : victims) {
+            if (removeIfIndexed(victim.key, victim)) {
+                prunedFiles++;
+            }
+        }
+        if (VolleyLog.DEBUG) {
+            long after;
+            synchronized (mLruLock) {
+                after = mTotalSize;
+            }
+            VolleyLog.v("pruned %d files, %d bytes, %d ms",
+                    prunedFiles, (after - before), SystemClock.elapsedRealtime() - startTime);
+        }
+    }
+
+    /**
+     * Removes an entry unless it has been replaced since it was looked up.
+     *
+     * @return Whether it was removed
+     */
+    private boolean removeIfIndexed(String key, CacheHeader expected) {
+        synchronized (lockFor(key)) {
+            if (mEntries.get(key) != expected) {
+                return false;
+            }
+            if (!getFileForKey(key).delete()) {
+                VolleyLog.d("Could not delete cache entry for key=%s, filename=%s",
+                        key, DiskBasedCache.getFilenameForKey(key));
+            }
+            unindex(key);
+            return true;
+        }
+    }
+
+    /** Adds an entry to the index; caller holds the key's file lock. */
+    private void index(String key, CacheHeader entry) {
+        CacheHeader previous = mEntries.put(key, entry);
+        synchronized (mLruLock) {
+            mLru.put(key, entry);
+            mTotalSize += entry.size - (previous == null ? 0 : previous.size);
+        }
+    }
+
+    /** Removes an entry from the index; caller holds the key's file lock. */
+    private void unindex(String key) {
+        CacheHeader previous = mEntries.remove(key);
+        if (previous != null) {
+            synchronized (mLruLock) {
+                mLru.remove(key);
+                mTotalSize -= previous.size;
+            }
+        }
+    }
+
+    /**
+     * Returns the file lock for a key. Keys whose file names collide share a lock, since they
+     * share a file.
+     */
+    private Object lockFor(String key) {
+        int hash = DiskBasedCache.getFilenameForKey(key).hashCode();
+        return mFileLocks[(hash & 0x7fffffff) % LOCK_STRIPES];
+    }
+}
@@ -23,19 +23,28 @@ import com.android.volley.VolleyLog;
 
 import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.EOFException;
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
-import java.io.FilterInputStream;
+import java.io.Flushable;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 /**
  * Cache implementation that caches files directly onto the hard disk in the specified
@@ -43,8 +52,13 @@ import java.util.Map;
  * 实现了Cache接口
  * 专门用于和本地文件交互的一个类
  * 存入缓存和取出缓存等功能
+ *
+ * <p>An append-only index journal in the cache directory records every put, removal and read,
+ * so that the index can be rebuilt without opening every cache file. The directory is only
+ * scanned when the journal is missing or corrupt. {@link #initialize()} loads the index in the
+ * background and the cache serves lookups meanwhile.</p>
  */
-public class DiskBasedCache implements Cache {
+public class DiskBasedCache implements Cache, Flushable {
 
     /** 
      * Map of the Key, CacheHeader pairs 
@@ -90,6 +104,62 @@ public class DiskBasedCache implements Cache {
      */
     private static final int CACHE_MAGIC = 0x20150306;
 
+    /**
+     * Magic number at the start of the index journal.
+     */
+    private static final int JOURNAL_MAGIC = 0x20161020;
+
+    /**
+     * Names of the index journal and of the journal being rewritten. Cache files are named after
+     * hash codes, so these cannot clash with them.
+     */
+    private static final String JOURNAL_FILE = "journal";
+    private static final String JOURNAL_FILE_TMP = "journal.tmp";
+
+    /** Journal record types. */
+    private static final int JOURNAL_PUT = 1;
+    private static final int JOURNAL_REMOVE = 2;
+    private static final int JOURNAL_READ = 3;
+
+    /**
+     * Number of journal records above which the journal is rewritten once at least half of them
+     * are redundant.
+     */
+    private static final int JOURNAL_COMPACT_RECORDS = 2000;
+
+    /**
+     * Appends to the index journal; null if journaling failed, in which case the journal is
+     * deleted and the next initialize() scans the directory.
+     * 索引日志：每次put、remove、读取都追加一条记录
+     * 启动的时候重放日志就可以重建mEntries，不需要打开每一个缓存文件读header
+     */
+    private OutputStream mJournal;
+
+    /** Number of records in the journal. */
+    private int mJournalRecords = 0;
+
+    /**
+     * An index read from disk by the loader thread, before it is merged into mEntries.
+     */
+    private static class LoadedIndex {
+        final Map<String, CacheHeader> entries =
+                new LinkedHashMap<String, CacheHeader>(16, .75f, true);
+        /** Cache files whose header could not be read. */
+        final List<File> unreadable = new ArrayList<File>();
+        /** Changes to the index the journal is missing, or -1 if the directory was scanned. */
+        int missed = 0;
+        int journalRecords = 0;
+    }
+
+    /** Whether the index is being loaded in the background. */
+    private boolean mLoading = false;
+
+    /** Bumped by clear() so that a running load is discarded. */
+    private int mLoadGeneration = 0;
+
+    /** Keys removed while the index was loading, which must not come back with it. */
+    private final Set<String> mRemovedWhileLoading = new HashSet<String>();
+
     /**
      * Constructs an instance of the DiskBasedCache at the specified directory.
      * 在指定的目录下面创建一个DiskBasedCache
@@ -117,6 +187,7 @@ public class DiskBasedCache implements Cache {
      */
     @Override
     public synchronized void clear() {
+        closeJournal();
         File[] files = mRootDirectory.listFiles();
         if (files != null) {
             for (File file : files) {
@@ -125,6 +196,10 @@ public class DiskBasedCache implements Cache {
         }
         mEntries.clear();
         mTotalSize = 0;
+        mLoading = false;
+        mLoadGeneration++;
+        mRemovedWhileLoading.clear();
+        rewriteJournal();
         VolleyLog.d("Cache cleared.");
     }
 
@@ -139,77 +214,266 @@ public class DiskBasedCache implements Cache {
         CacheHeader entry = mEntries.get(key);
         // if the entry does not exist, return.
         if (entry == null) {
+            if (mLoading && !mRemovedWhileLoading.contains(key)) {
+                return probe(key);
+            }
             return null;
         }
 
         //依据key获取缓存的文件，如果不存在则创建一个
         File file = getFileForKey(key);
 
-        CountingInputStream cis = null;
+        FileInputStream fis = null;
 
         try {
-
-            cis = new CountingInputStream(new BufferedInputStream(new FileInputStream(file)));
-            CacheHeader.readHeader(cis); // eat header
-            byte[] data = streamToBytes(cis, (int) (file.length() - cis.bytesRead));
-            return entry.toCacheEntry(data);
+            /**
+             * 用FileChannel的scatter read一次把header读进一个小buffer，body直接读进返回的byte[]
+             * header的长度用索引里面记的，但是内容每次都从文件里面解析，不相信索引：
+             * 进程可能在写完文件、还没记日志的时候死掉，重放出来的索引就是旧的
+             */
+            fis = new FileInputStream(file);
+            FileChannel channel = fis.getChannel();
+            int headerSize = entry.getHeaderSize();
+            long bodySize = channel.size() - headerSize;
+            if (bodySize < 0 || bodySize > Integer.MAX_VALUE) {
+                // The index does not describe the file, so the body offset cannot be trusted.
+                return reread(key, file);
+            }
+            ByteBuffer header = ByteBuffer.allocate(headerSize);
+            byte[] data = new byte[(int) bodySize];
+            ByteBuffer[] buffers = new ByteBuffer[] { header, ByteBuffer.wrap(data) };
+            long remaining = channel.size();
+            while (remaining > 0) {
+                long count = channel.read(buffers);
+                if (count < 0) {
+                    throw new EOFException();
+                }
+                remaining -= count;
+            }
+            CacheHeader onDisk;
+            try {
+                onDisk = CacheHeader.readHeader(new ByteArrayInputStream(header.array()));
+            } catch (IOException e) {
+                onDisk = null;
+            }
+            if (onDisk == null || onDisk.getHeaderSize() != headerSize
+                    || !key.equals(onDisk.key)) {
+                // The index does not describe the file, so the body offset cannot be trusted.
+                return reread(key, file);
+            }
+            onDisk.size = entry.size;
+            putEntry(key, onDisk);
+            // 读取也记一笔，重放的时候才能恢复LRU的顺序
+            journal(JOURNAL_READ, key, null);
+            return onDisk.toCacheEntry(data);
 
         } catch (IOException e) {
             VolleyLog.d("%s: %s", file.getAbsolutePath(), e.toString());
             remove(key);
             return null;
-        }  catch (NegativeArraySizeException e) {
-            VolleyLog.d("%s: %s", file.getAbsolutePath(), e.toString());
-            remove(key);
-            return null;
         } finally {
-            if (cis != null) {
+            if (fis != null) {
                 try {
-                    cis.close();
-                } catch (IOException ioe) {
-                    return null;
-                }
+                    fis.close();
+                } catch (IOException ignored) { }
+            }
+        }
+    }
+
+    /**
+     * Reads an indexed entry by parsing its file from the start, for when the index no longer
+     * describes the file. The index and journal are corrected from the file. A file that now
+     * belongs to another key is a miss; only this key's index entry is dropped.
+     * 文件名可能冲突，文件已经是别的key的了，不能把它删掉
+     */
+    private Entry reread(String key, File file) throws IOException {
+        BufferedInputStream is = new BufferedInputStream(new FileInputStream(file));
+        try {
+            CacheHeader header = CacheHeader.readHeader(is);
+            if (!key.equals(header.key)) {
+                removeEntry(key);
+                journal(JOURNAL_REMOVE, key, null);
+                return null;
+            }
+            long bodySize = file.length() - header.getHeaderSize();
+            if (bodySize < 0 || bodySize > Integer.MAX_VALUE) {
+                throw new IOException("Unexpected cache file size " + file.length());
             }
+            byte[] data = streamToBytes(is, (int) bodySize);
+            header.size = bodySize;
+            putEntry(key, header);
+            journal(JOURNAL_PUT, key, header);
+            return header.toCacheEntry(data);
+        } finally {
+            is.close();
         }
     }
 
     /**
-     * Initializes the DiskBasedCache by scanning for all files currently in the
-     * specified root directory. Creates the root directory if necessary.
+     * Starts loading the index from the journal, or by scanning for all files currently in the
+     * specified root directory if the journal is missing or corrupt, on a background thread.
+     * Creates the root directory if necessary.
      * 对缓存目录的初始化工作，检查目录是否存在
      * 如果不存在就给重新创建一个
+     *
+     * <p>Returns without waiting for the index. Until it is loaded, lookups of keys that are
+     * not indexed yet read the key's file directly, so requests are served from the disk
+     * cache right away.</p>
      */
     @Override
     public synchronized void initialize() {
+        if (mLoading) {
+            return;
+        }
         if (!mRootDirectory.exists()) {
             if (!mRootDirectory.mkdirs()) {
                 VolleyLog.e("Unable to create cache dir %s", mRootDirectory.getAbsolutePath());
+                return;
             }
+            rewriteJournal();
             return;
         }
 
-        /**
-         * 如果缓存目录已经存在了
-         * 则将缓存目录下面的文件都扫描一遍
-         * 将关于缓存文件的部分信息加载到内存中来
-         * 方便后面对缓存的查询等工作
-         */
+        mLoading = true;
+        final int generation = mLoadGeneration;
+        new Thread("VolleyCacheLoader") {
+            @Override
+            public void run() {
+                load(generation);
+            }
+        }.start();
+    }
 
-        File[] files = mRootDirectory.listFiles();
-        if (files == null) {
+    /**
+     * Reads the index from disk without holding the lock, then merges it into mEntries.
+     * 在后台线程里面读取索引，读的时候不持有锁，get()、put()可以照常进行
+     */
+    private void load(int generation) {
+        long startTime = SystemClock.elapsedRealtime();
+        LoadedIndex index = new LoadedIndex();
+        try {
+            File[] files = mRootDirectory.listFiles();
+            if (files != null && !replayJournal(files, index)) {
+                // 日志不存在或者已经损坏，只能打开每一个文件读header
+                index.entries.clear();
+                index.missed = -1;
+                scanFiles(files, index);
+            }
+        } catch (RuntimeException e) {
+            // Keep whatever was put while loading rather than probing files forever.
+            VolleyLog.e(e, "Unable to load cache index");
+            index.entries.clear();
+            index.missed = -1;
+        }
+        finishLoading(index, generation);
+        if (VolleyLog.DEBUG) {
+            VolleyLog.v("Cache index loaded with %d entries from %s in %d ms",
+                    index.entries.size(), index.missed < 0 ? "directory scan" : "journal",
+                    SystemClock.elapsedRealtime() - startTime);
+        }
+    }
+
+    /**
+     * Merges a loaded index into mEntries. Puts, removals and probes made while loading are
+     * newer than anything read from disk, so they win.
+     * 加载期间的put、remove、直接读文件得到的entry都比磁盘上读出来的新，合并的时候以它们为准
+     */
+    private synchronized void finishLoading(LoadedIndex index, int generation) {
+        if (generation != mLoadGeneration) {
+            // clear() wiped the directory while we were reading it.
             return;
         }
+        mLoading = false;
+        boolean changed = !mEntries.isEmpty() || !mRemovedWhileLoading.isEmpty();
+        Map<String, CacheHeader> live = new LinkedHashMap<String, CacheHeader>(mEntries);
+        Set<String> liveFilenames = new HashSet<String>();
+        for (String key : live.keySet()) {
+            liveFilenames.add(getFilenameForKey(key));
+        }
+        mEntries.clear();
+        mTotalSize = 0;
+        for (CacheHeader entry : index.entries.values()) {
+            if (!live.containsKey(entry.key) && !mRemovedWhileLoading.contains(entry.key)) {
+                putEntry(entry.key, entry);
+            }
+        }
+        for (CacheHeader entry : live.values()) {
+            putEntry(entry.key, entry);
+        }
+        mRemovedWhileLoading.clear();
+        for (File file : index.unreadable) {
+            // May have been written by a put() while we were reading it.
+            if (!liveFilenames.contains(file.getName())) {
+                file.delete();
+            }
+        }
+
+        mJournalRecords = index.journalRecords;
+        if (index.missed != 0 || changed || isJournalRedundant()) {
+            rewriteJournal();
+        } else {
+            openJournal();
+        }
+        pruneIfNeeded(0);
+    }
+
+    /**
+     * Reads the entry for a key straight from its file; used for keys that are not indexed
+     * while the index is still loading. The entry is added to the index.
+     * 索引还在加载的时候，索引里面还没有的key直接去读它对应的文件
+     */
+    private Entry probe(String key) {
+        File file = getFileForKey(key);
+        BufferedInputStream is = null;
+        try {
+            is = new BufferedInputStream(new FileInputStream(file));
+            CacheHeader header = CacheHeader.readHeader(is);
+            if (!key.equals(header.key)) {
+                return null;
+            }
+            long bodySize = file.length() - header.getHeaderSize();
+            if (bodySize < 0 || bodySize > Integer.MAX_VALUE) {
+                throw new IOException("Unexpected cache file size " + file.length());
+            }
+            byte[] data = streamToBytes(is, (int) bodySize);
+            header.size = file.length();
+            putEntry(key, header);
+            return header.toCacheEntry(data);
+        } catch (FileNotFoundException e) {
+            return null;
+        } catch (IOException e) {
+            // Leave the file to the loader, which deletes it if it really is unreadable.
+            VolleyLog.d("%s: %s", file.getAbsolutePath(), e.toString());
+            return null;
+        } finally {
+            if (is != null) {
+                try {
+                    is.close();
+                } catch (IOException ignored) { }
+            }
+        }
+    }
+
+    /**
+     * Reads the headers of the given cache files into a loaded index, noting the ones that
+     * cannot be read.
+     * 将缓存目录下面的文件都扫描一遍
+     * 将关于缓存文件的部分信息加载到内存中来
+     * 方便后面对缓存的查询等工作
+     */
+    private static void scanFiles(File[] files, LoadedIndex index) {
         for (File file : files) {
+            if (isJournalFile(file.getName())) {
+                continue;
+            }
             BufferedInputStream fis = null;
             try {
                 fis = new BufferedInputStream(new FileInputStream(file));
                 CacheHeader entry = CacheHeader.readHeader(fis);
                 entry.size = file.length();
-                putEntry(entry.key, entry);
+                index.entries.put(entry.key, entry);
             } catch (IOException e) {
-                if (file != null) {
-                   file.delete();
-                }
+                index.unreadable.add(file);
             } finally {
                 try {
                     if (fis != null) {
@@ -264,6 +528,7 @@ public class DiskBasedCache implements Cache {
             fos.write(entry.data);
             fos.close();
             putEntry(key, e);
+            journal(JOURNAL_PUT, key, e);
             return;
         } catch (IOException e) {
         }
@@ -279,7 +544,13 @@ public class DiskBasedCache implements Cache {
     @Override
     public synchronized void remove(String key) {
         boolean deleted = getFileForKey(key).delete();
-        removeEntry(key);
+        if (mEntries.containsKey(key)) {
+            removeEntry(key);
+            journal(JOURNAL_REMOVE, key, null);
+        }
+        if (mLoading) {
+            mRemovedWhileLoading.add(key);
+        }
         if (!deleted) {
             VolleyLog.d("Could not delete cache entry for key=%s, filename=%s",
                     key, getFilenameForKey(key));
@@ -293,7 +564,7 @@ public class DiskBasedCache implements Cache {
      * @param key The key to generate a file name for.
      * @return A pseudo-unique filename.
      */
-    private String getFilenameForKey(String key) {
+    static String getFilenameForKey(String key) {
         int firstHalfLength = key.length() / 2;
         String localFilename = String.valueOf(key.substring(0, firstHalfLength).hashCode());
         localFilename += String.valueOf(key.substring(firstHalfLength).hashCode());
@@ -343,6 +614,7 @@ public class DiskBasedCache implements Cache {
                        e.key, getFilenameForKey(e.key));
             }
             iterator.remove();
+            journal(JOURNAL_REMOVE, e.key, null);
             prunedFiles++;
 
             /**
@@ -390,12 +662,207 @@ public class DiskBasedCache implements Cache {
         }
     }
 
+    /**
+     * Rebuilds the index from the journal, then reconciles it with the directory listing:
+     * entries whose file is gone are dropped, and files the journal does not know about (the
+     * process died between writing the file and journaling it) have their header read.
+     * 重放索引日志，按照记录的顺序put、remove、读取，LRU的顺序也就恢复了
+     *
+     * @param files The files in the cache directory
+     * @param index Receives the entries, and the number of changes the journal is missing
+     * @return false if there is no usable journal
+     */
+    private boolean replayJournal(File[] files, LoadedIndex index) {
+        File journalFile = new File(mRootDirectory, JOURNAL_FILE);
+        if (!journalFile.exists()) {
+            return false;
+        }
+        Map<String, CacheHeader> entries = index.entries;
+        BufferedInputStream is = null;
+        try {
+            is = new BufferedInputStream(new FileInputStream(journalFile));
+            if (readInt(is) != JOURNAL_MAGIC) {
+                throw new IOException("Bad journal magic");
+            }
+            while (true) {
+                int type = is.read();
+                if (type == -1) {
+                    break;
+                }
+                if (type == JOURNAL_PUT) {
+                    long size = readLong(is);
+                    CacheHeader entry = CacheHeader.readHeader(is);
+                    entry.size = size;
+                    entries.put(entry.key, entry);
+                } else if (type == JOURNAL_REMOVE) {
+                    entries.remove(readString(is));
+                } else if (type == JOURNAL_READ) {
+                    // Only moves the entry to the most recently used end.
+                    entries.get(readString(is));
+                } else {
+                    throw new IOException("Bad journal record type " + type);
+                }
+                index.journalRecords++;
+            }
+        } catch (EOFException e) {
+            // 最后一条记录只写了一半(进程在写日志的时候被杀)，丢掉它，前面的记录还是有效的
+            index.missed++;
+        } catch (IOException e) {
+            VolleyLog.d("Unusable cache journal: %s", e.toString());
+            return false;
+        } finally {
+            if (is != null) {
+                try {
+                    is.close();
+                } catch (IOException ignored) { }
+            }
+        }
+
+        Set<String> names = new HashSet<String>();
+        for (File file : files) {
+            if (!isJournalFile(file.getName())) {
+                names.add(file.getName());
+            }
+        }
+        Iterator<String> iterator = entries.keySet().iterator();
+        while (iterator.hasNext()) {
+            if (!names.remove(getFilenameForKey(iterator.next()))) {
+                iterator.remove();
+                index.missed++;
+            }
+        }
+        if (!names.isEmpty()) {
+            List<File> unknown = new ArrayList<File>(names.size());
+            for (String name : names) {
+                unknown.add(new File(mRootDirectory, name));
+            }
+            scanFiles(unknown.toArray(new File[unknown.size()]), index);
+            index.missed += unknown.size();
+        }
+        return true;
+    }
+
+    private static boolean isJournalFile(String name) {
+        return JOURNAL_FILE.equals(name) || JOURNAL_FILE_TMP.equals(name);
+    }
+
+    /** Whether most of the journal's records no longer describe live entries. */
+    private boolean isJournalRedundant() {
+        return mJournalRecords >= JOURNAL_COMPACT_RECORDS
+                && mJournalRecords >= 2 * mEntries.size();
+    }
+
+    /**
+     * Replaces the journal with one PUT record per entry, in LRU order. The new journal is
+     * written to a temporary file and renamed over the old one.
+     * 压缩索引日志：重新写一份只包含当前entry的日志，写完之后再替换掉旧的
+     */
+    private void rewriteJournal() {
+        closeJournal();
+        File tmp = new File(mRootDirectory, JOURNAL_FILE_TMP);
+        OutputStream os = null;
+        try {
+            os = new BufferedOutputStream(new FileOutputStream(tmp));
+            writeInt(os, JOURNAL_MAGIC);
+            for (CacheHeader entry : mEntries.values()) {
+                journalRecord(JOURNAL_PUT, entry.key, entry).writeTo(os);
+            }
+            os.close();
+            os = null;
+            if (!tmp.renameTo(new File(mRootDirectory, JOURNAL_FILE))) {
+                throw new IOException("Could not rename " + tmp.getAbsolutePath());
+            }
+            mJournalRecords = mEntries.size();
+            openJournal();
+        } catch (IOException e) {
+            VolleyLog.d("Could not write cache journal: %s", e.toString());
+            if (os != null) {
+                try {
+                    os.close();
+                } catch (IOException ignored) { }
+            }
+            tmp.delete();
+            new File(mRootDirectory, JOURNAL_FILE).delete();
+        }
+    }
+
+    private void openJournal() {
+        try {
+            mJournal = new BufferedOutputStream(
+                    new FileOutputStream(new File(mRootDirectory, JOURNAL_FILE), true));
+        } catch (IOException e) {
+            VolleyLog.d("Could not open cache journal: %s", e.toString());
+            new File(mRootDirectory, JOURNAL_FILE).delete();
+        }
+    }
+
+    private void closeJournal() {
+        if (mJournal != null) {
+            try {
+                mJournal.close();
+            } catch (IOException ignored) { }
+            mJournal = null;
+        }
+    }
+
+    /**
+     * Appends a record to the journal. PUT and REMOVE records are handed to the OS right away
+     * so that they survive the process being killed; READ records only affect the LRU order
+     * and stay buffered. If the journal cannot be written it is deleted, so that the next
+     * initialize() scans the directory instead of trusting it.
+     */
+    private void journal(int type, String key, CacheHeader entry) {
+        if (mJournal == null) {
+            return;
+        }
+        try {
+            journalRecord(type, key, entry).writeTo(mJournal);
+            mJournalRecords++;
+            if (type != JOURNAL_READ) {
+                mJournal.flush();
+            }
+        } catch (IOException e) {
+            VolleyLog.d("Could not append to cache journal: %s", e.toString());
+            closeJournal();
+            new File(mRootDirectory, JOURNAL_FILE).delete();
+            return;
+        }
+        if (isJournalRedundant()) {
+            rewriteJournal();
+        }
+    }
+
+    private static ByteArrayOutputStream journalRecord(int type, String key, CacheHeader entry)
+            throws IOException {
+        ByteArrayOutputStream record = new ByteArrayOutputStream();
+        record.write(type);
+        if (type == JOURNAL_PUT) {
+            writeLong(record, entry.size);
+            if (!entry.writeHeader(record)) {
+                throw new IOException("Could not write header for " + key);
+            }
+        } else {
+            writeString(record, key);
+        }
+        return record;
+    }
+
+    /**
+     * Hands buffered journal records to the OS.
+     */
+    @Override
+    public synchronized void flush() throws IOException {
+        if (mJournal != null) {
+            mJournal.flush();
+        }
+    }
+
     /**
      * Reads the contents of an InputStream into a byte[].
      * 从InputStream中读取指定长度的数据
      * 
      */
-    private static byte[] streamToBytes(InputStream in, int length) throws IOException {
+    static byte[] streamToBytes(InputStream in, int length) throws IOException {
         byte[] bytes = new byte[length];
         int count;
         int pos = 0;
@@ -470,6 +937,14 @@ public class DiskBasedCache implements Cache {
          */
         public Map<String, String> responseHeaders;
 
+        /**
+         * Size of the serialized header, set when the header is read or written. (This is not
+         * serialized to disk.)
+         * 文件里面header所占的字节数，body就从这个位置开始
+         * 读写header的时候就记下来，之后responseHeaders被改动也不会影响
+         */
+        private int headerSize;
+
         private CacheHeader() { }
 
         /**
@@ -511,10 +986,33 @@ public class DiskBasedCache implements Cache {
             entry.ttl = readLong(is);
             entry.softTtl = readLong(is);
             entry.responseHeaders = readStringStringMap(is);
+            entry.headerSize = entry.measure();
 
             return entry;
         }
 
+        /**
+         * Returns the size of this header in its cache file.
+         */
+        public int getHeaderSize() {
+            return headerSize;
+        }
+
+        /** Computes the number of bytes {@link #writeHeader(OutputStream)} writes. */
+        private int measure() throws IOException {
+            int size = 4 + stringSize(key) + stringSize(etag == null ? "" : etag) + 4 * 8 + 4;
+            if (responseHeaders != null) {
+                for (Map.Entry<String, String> header : responseHeaders.entrySet()) {
+                    size += stringSize(header.getKey()) + stringSize(header.getValue());
+                }
+            }
+            return size;
+        }
+
+        private static int stringSize(String s) throws IOException {
+            return 8 + s.getBytes("UTF-8").length;
+        }
+
         /**
          * Creates a cache entry for the specified data.
          * 从CacheHeader转换成Entry类的实例
@@ -538,6 +1036,7 @@ public class DiskBasedCache implements Cache {
          */
         public boolean writeHeader(OutputStream os) {
             try {
+                headerSize = measure();
                 writeInt(os, CACHE_MAGIC);
                 writeString(os, key);
                 writeString(os, etag == null ? "" : etag);
@@ -556,38 +1055,6 @@ public class DiskBasedCache implements Cache {
 
     }
 
-    /**
-     * 继承了FilterInputStream
-     * 没啥特别的= =
-     */
-
-    private static class CountingInputStream extends FilterInputStream {
-
-        private int bytesRead = 0;
-
-        private CountingInputStream(InputStream in) {
-            super(in);
-        }
-
-        @Override
-        public int read() throws IOException {
-            int result = super.read();
-            if (result != -1) {
-                bytesRead++;
-            }
-            return result;
-        }
-
-        @Override
-        public int read(byte[] buffer, int offset, int count) throws IOException {
-            int result = super.read(buffer, offset, count);
-            if (result != -1) {
-                bytesRead += result;
-            }
-            return result;
-        }
-    }
-
     /*
      * Homebrewed simple serialization system used for reading and writing cache
      * headers on disk. Once upon a time, this used the standard Java
@@ -0,0 +1,77 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley.toolbox;
+
+import com.android.volley.AsyncNetwork;
+import com.android.volley.Network;
+import com.android.volley.NetworkResponse;
+import com.android.volley.Request;
+import com.android.volley.VolleyError;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * An {@link AsyncNetwork} that runs a blocking {@link Network}, such as a {@link BasicNetwork}
+ * on top of {@link HurlStack}, on an {@link Executor}.
+ * 把阻塞的Network适配成AsyncNetwork，网络请求在Executor上面执行
+ * 这样已有的HurlStack和HttpClientStack不用修改也可以配合AsyncNetworkDispatcher使用
+ *
+ * <p>Each request in flight holds an executor thread, so this saves no threads by itself; it
+ * lets the default stack be used wherever an {@link AsyncNetwork} is expected. A queue that
+ * only uses a blocking network can get the same behavior from
+ * {@link com.android.volley.ExecutorNetworkDispatcher}. Requests the executor rejects fail
+ * through their callbacks.</p>
+ */
+public class ExecutorAsyncNetwork implements AsyncNetwork {
+
+    private final Network mNetwork;
+    private final Executor mExecutor;
+
+    /**
+     * @param network The blocking network that performs the requests
+     * @param executor Executor each request is performed on
+     */
+    public ExecutorAsyncNetwork(Network network, Executor executor) {
+        mNetwork = network;
+        mExecutor = executor;
+    }
+
+    @Override
+    public void performRequest(final Request<?> request, final OnRequestComplete callback) {
+        try {
+            mExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    NetworkResponse networkResponse;
+                    try {
+                        networkResponse = mNetwork.performRequest(request);
+                    } catch (VolleyError e) {
+                        callback.onError(e);
+                        return;
+                    } catch (RuntimeException e) {
+                        callback.onError(new VolleyError(e));
+                        return;
+                    }
+                    callback.onSuccess(networkResponse);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            callback.onError(new VolleyError("Network executor rejected the request", e));
+        }
+    }
+}
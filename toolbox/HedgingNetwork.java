@@ -0,0 +1,313 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley.toolbox;
+
+import android.os.SystemClock;
+
+import com.android.volley.DefaultRetryPolicy;
+import com.android.volley.HedgingPolicy;
+import com.android.volley.Network;
+import com.android.volley.NetworkResponse;
+import com.android.volley.Request;
+import com.android.volley.Request.Method;
+import com.android.volley.RetryPolicy;
+import com.android.volley.VolleyError;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A {@link Network} that sends a second attempt of a GET or HEAD request carrying a
+ * {@link HedgingPolicy} when the first attempt has not completed within the policy's delay.
+ * 对冲请求：第一次请求在指定时间内没有结果的话，再发一次相同的请求
+ * 先成功的那个结果被采用，另一个会被中断(断开连接并且interrupt它所在的线程)
+ *
+ * <p>Both attempts run on the given executor while the dispatcher thread waits; the first
+ * successful response wins and the other attempt is aborted. If both fail, the error of the
+ * attempt that failed last is thrown. Each attempt retries with its own copy of the request's
+ * {@link RetryPolicy}; a policy other than {@link DefaultRetryPolicy} cannot be copied, so its
+ * attempts get one try each at its current timeout. The markers the attempts add are written
+ * to the request's log by the dispatcher thread once the race is decided.</p>
+ *
+ * <p>Hedges are limited by a budget so that they cannot multiply the load on a struggling
+ * server: every hedgeable request earns {@code budgetPercent} hundredths of a hedge, up to
+ * {@code maxBurst} hedges, and every hedge sent spends one.</p>
+ */
+public class HedgingNetwork implements Network {
+
+    /** Budget units per hedge. */
+    private static final int HEDGE_COST = 100;
+
+    /** The two attempts of one request. */
+    private static class Race {
+        /** Threads still running an attempt; cleared by each attempt when it completes. */
+        final Thread[] threads = new Thread[2];
+        int started;
+        int pending;
+        NetworkResponse response;
+        VolleyError error;
+        /** Index of the attempt whose response was used, or -1. */
+        int winner = -1;
+        /** Markers of each attempt that has completed. */
+        final List<List<String>> markers = new ArrayList<List<String>>(2);
+
+        Race() {
+            markers.add(null);
+            markers.add(null);
+        }
+
+        boolean isDecided() {
+            return response != null || (started > 0 && pending == 0);
+        }
+    }
+
+    private final Network mNetwork;
+    private final Executor mExecutor;
+    private final int mBudgetPercent;
+    private final int mMaxBudget;
+
+    /** Available budget, in hundredths of a hedge. */
+    private final AtomicInteger mBudget = new AtomicInteger();
+
+    private final AtomicInteger mHedgeCount = new AtomicInteger();
+    private final AtomicInteger mHedgeWinCount = new AtomicInteger();
+
+    /**
+     * @param network The network performing every attempt
+     * @param executor Executor the attempts run on; needs two threads per hedged request
+     * @param budgetPercent Hedges allowed per hundred hedgeable requests
+     * @param maxBurst Upper bound on the hedges that can be saved up
+     */
+    public HedgingNetwork(Network network, Executor executor, int budgetPercent, int maxBurst) {
+        if (budgetPercent < 0 || budgetPercent > 100 || maxBurst < 1) {
+            throw new IllegalArgumentException(
+                    "Need 0 <= budgetPercent <= 100 and maxBurst >= 1");
+        }
+        mNetwork = network;
+        mExecutor = executor;
+        mBudgetPercent = budgetPercent;
+        mMaxBudget = maxBurst * HEDGE_COST;
+    }
+
+    /** Returns the number of second attempts sent. */
+    public int getHedgeCount() {
+        return mHedgeCount.get();
+    }
+
+    /** Returns the number of second attempts whose response was used. */
+    public int getHedgeWinCount() {
+        return mHedgeWinCount.get();
+    }
+
+    @Override
+    public NetworkResponse performRequest(Request<?> request) throws VolleyError {
+        HedgingPolicy policy = request.getHedgingPolicy();
+        if (policy == null || !(request.getMethod() == Method.GET
+                || request.getMethod() == Method.HEAD)) {
+            return mNetwork.performRequest(request);
+        }
+        earnBudget();
+
+        Race race = new Race();
+        if (!start(request, race, 0)) {
+            return mNetwork.performRequest(request);
+        }
+        List<List<String>> markers;
+        try {
+            boolean hedge;
+            synchronized (race) {
+                long deadline = SystemClock.elapsedRealtime() + policy.getHedgeDelayMs();
+                long remainingMs;
+                while (!race.isDecided()
+                        && (remainingMs = deadline - SystemClock.elapsedRealtime()) > 0) {
+                    race.wait(remainingMs);
+                }
+                hedge = !race.isDecided() && spendBudget();
+            }
+            // If the executor rejects the hedge, wait for the first attempt rather than fail.
+            if (hedge && start(request, race, 1)) {
+                mHedgeCount.incrementAndGet();
+                request.addMarker("network-hedge-sent");
+            }
+            synchronized (race) {
+                while (!race.isDecided()) {
+                    race.wait();
+                }
+                abortRunning(request, race);
+                markers = takeMarkers(request, race);
+            }
+        } catch (InterruptedException e) {
+            synchronized (race) {
+                abortRunning(request, race);
+                markers = takeMarkers(request, race);
+            }
+            addMarkers(request, markers);
+            Thread.currentThread().interrupt();
+            throw new VolleyError(e);
+        }
+        addMarkers(request, markers);
+        if (race.winner == 1) {
+            request.addMarker("network-hedge-won");
+        }
+        if (race.response != null) {
+            return race.response;
+        }
+        throw race.error;
+    }
+
+    /**
+     * Starts attempt {@code index} on the executor, with its own copy of the request's retry
+     * policy. Must not be called with the race's lock held.
+     *
+     * @return false if the attempt was not started, because the race was decided meanwhile or
+     *         the executor rejected it
+     */
+    private boolean start(final Request<?> request, final Race race, final int index) {
+        final RetryPolicy retryPolicy = copyOf(request.getRetryPolicy());
+        synchronized (race) {
+            if (race.started > 0 && race.isDecided()) {
+                return false;
+            }
+            race.started++;
+            race.pending++;
+        }
+        try {
+            mExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    synchronized (race) {
+                        if (race.isDecided()) {
+                            return;
+                        }
+                        race.threads[index] = Thread.currentThread();
+                        request.beginAttempt(retryPolicy);
+                    }
+                    NetworkResponse response = null;
+                    VolleyError error = null;
+                    try {
+                        response = mNetwork.performRequest(request);
+                    } catch (VolleyError e) {
+                        error = e;
+                    } catch (RuntimeException e) {
+                        error = new VolleyError(e);
+                    }
+                    synchronized (race) {
+                        race.threads[index] = null;
+                        race.markers.set(index, request.endAttempt());
+                        // Nobody can interrupt this attempt any more; don't leak a stale
+                        // interrupt into the executor's next task.
+                        Thread.interrupted();
+                        race.pending--;
+                        if (race.response == null) {
+                            if (response != null) {
+                                race.response = response;
+                                race.winner = index;
+                                if (index == 1) {
+                                    mHedgeWinCount.incrementAndGet();
+                                }
+                            } else {
+                                race.error = error;
+                            }
+                        }
+                        race.notifyAll();
+                    }
+                }
+            });
+            return true;
+        } catch (RejectedExecutionException e) {
+            synchronized (race) {
+                race.started--;
+                race.pending--;
+                race.notifyAll();
+            }
+            return false;
+        }
+    }
+
+    /**
+     * Returns a copy of a retry policy that changes independently of it; a policy that cannot
+     * be copied is replaced by one that does not retry, at its current timeout.
+     */
+    private static RetryPolicy copyOf(RetryPolicy retryPolicy) {
+        if (retryPolicy.getClass() == DefaultRetryPolicy.class) {
+            return new DefaultRetryPolicy((DefaultRetryPolicy) retryPolicy);
+        }
+        return new DefaultRetryPolicy(retryPolicy.getCurrentTimeout(), 0, 0f);
+    }
+
+    /**
+     * Collects the markers of both attempts; the ones of an attempt still running are taken
+     * from the request, and the ones it adds later are dropped. Caller holds the race's lock.
+     */
+    private static List<List<String>> takeMarkers(Request<?> request, Race race) {
+        List<List<String>> markers = new ArrayList<List<String>>(2);
+        for (int i = 0; i < 2; i++) {
+            List<String> attemptMarkers = race.markers.get(i);
+            if (attemptMarkers == null && race.threads[i] != null) {
+                attemptMarkers = request.takeAttemptMarkers(race.threads[i]);
+            }
+            if (attemptMarkers != null) {
+                markers.add(attemptMarkers);
+            }
+        }
+        return markers;
+    }
+
+    /** Adds the markers of the attempts from the calling thread. */
+    private static void addMarkers(Request<?> request, List<List<String>> markers) {
+        for (List<String> attemptMarkers : markers) {
+            for (String marker : attemptMarkers) {
+                request.addMarker(marker);
+            }
+        }
+    }
+
+    /** Aborts the attempts that are still running; caller holds the race's lock. */
+    private static void abortRunning(Request<?> request, Race race) {
+        for (Thread thread : race.threads) {
+            if (thread != null) {
+                request.abortAttempt(thread);
+                thread.interrupt();
+            }
+        }
+    }
+
+    private void earnBudget() {
+        while (true) {
+            int budget = mBudget.get();
+            int next = Math.min(mMaxBudget, budget + mBudgetPercent);
+            if (next == budget || mBudget.compareAndSet(budget, next)) {
+                return;
+            }
+        }
+    }
+
+    private boolean spendBudget() {
+        while (true) {
+            int budget = mBudget.get();
+            if (budget < HEDGE_COST) {
+                return false;
+            }
+            if (mBudget.compareAndSet(budget, budget - HEDGE_COST)) {
+                return true;
+            }
+        }
+    }
+}
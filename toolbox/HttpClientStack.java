@@ -101,7 +101,7 @@ public class HttpClientStack implements HttpStack {
          * 传入请求体和额外需要添加入的头部
          * 生成并返回一个HttpUriRequest
          */
-        HttpUriRequest httpRequest = createHttpRequest(request, additionalHeaders);
+        final HttpUriRequest httpRequest = createHttpRequest(request, additionalHeaders);
 
         /**
          * 这个方法在前面实现了，将这些传入的键值对全部添加到httpRequest里面去
@@ -151,6 +151,12 @@ public class HttpClientStack implements HttpStack {
          * 方法描述为 Executes a request using the default context.
          * 方法结束后将返回一个HttpResponse，也就是请求的结果类
          */ 
+        request.setAbortAction(new Runnable() {
+            @Override
+            public void run() {
+                httpRequest.abort();
+            }
+        });
         return mClient.execute(httpRequest);
     }
 
@@ -156,7 +156,18 @@ public class HurlStack implements HttpStack {
          * 在函数里面打开了并返回了一个HttpURLConnection
          * 设置了HttpURLConnection的响应超时阀值
          */
-        HttpURLConnection connection = openConnection(parsedUrl, request);
+        final HttpURLConnection connection = openConnection(parsedUrl, request);
+
+        /**
+         * 注册中断操作，request被取消的时候直接断开连接，正在阻塞的读写会立刻抛出IOException
+         * 连接在BasicNetwork读完body之后才清除
+         */
+        request.setAbortAction(new Runnable() {
+            @Override
+            public void run() {
+                connection.disconnect();
+            }
+        });
 
         /**
          * 开始给HttpURLConnection添加header的信息
@@ -0,0 +1,709 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley.toolbox;
+
+import android.os.Process;
+
+import com.android.volley.Cache;
+import com.android.volley.VolleyLog;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
+
+/**
+ * Cache implementation that appends entries to a few large segment files instead of writing
+ * one file per entry. A drop-in alternative to {@link DiskBasedCache}; the default disk usage
+ * size is 5MB, but is configurable.
+ * 日志结构的磁盘缓存：所有的entry都追加写到少数几个segment文件里面，内存里面保存key到(segment, offset)的索引
+ * 小entry很多的时候，不用为每个request都创建、打开、关闭一个文件
+ *
+ * <ul>
+ *     <li>Every put or remove appends a record (header with a CRC32, then the entry) to the
+ *         active segment; a full segment is synced to disk and sealed.</li>
+ *     <li>Reads use positional reads on the segment's channel and do not hold the cache lock
+ *         while reading.</li>
+ *     <li>A background thread rewrites the live records of sealed segments that are mostly
+ *         dead into the active segment and deletes them.</li>
+ *     <li>{@link #initialize()} rebuilds the index by scanning the segments oldest first; a
+ *         torn record at the end of the newest segment, left by a crash, is cut off.</li>
+ * </ul>
+ */
+public class LogStructuredCache implements Cache, Flushable {
+
+    /** Default maximum disk usage in bytes. */
+    private static final int DEFAULT_DISK_USAGE_BYTES = 5 * 1024 * 1024;
+
+    /** Default size at which the active segment is sealed. */
+    private static final int DEFAULT_SEGMENT_BYTES = 1024 * 1024;
+
+    /** High water mark percentage for the cache. */
+    private static final float HYSTERESIS_FACTOR = 0.9f;
+
+    /** Share of dead bytes above which a sealed segment is compacted. */
+    private static final float COMPACTION_THRESHOLD = 0.5f;
+
+    /** Magic number at the start of every record. */
+    private static final int RECORD_MAGIC = 0x20160718;
+
+    /** Size of the record header: magic, payload length and CRC32 of the payload. */
+    private static final int RECORD_HEADER_BYTES = 12;
+
+    private static final int TYPE_PUT = 1;
+    private static final int TYPE_REMOVE = 2;
+
+    private static final String SEGMENT_PREFIX = "segment-";
+    private static final String SEGMENT_SUFFIX = ".log";
+
+    /** One segment file. */
+    private static class Segment {
+        final int id;
+        final File file;
+        /** Replaced by {@link #reopen()}; read without the cache lock. */
+        volatile RandomAccessFile raf;
+        volatile FileChannel channel;
+        /** Bytes written to the segment. */
+        long size;
+        /** Bytes of records the index still points to. */
+        long liveBytes;
+
+        Segment(int id, File file) throws IOException {
+            this.id = id;
+            this.file = file;
+            raf = new RandomAccessFile(file, "rw");
+            channel = raf.getChannel();
+            size = channel.size();
+        }
+
+        /**
+         * Opens the file again after an interrupted read or write closed the channel.
+         * 线程在读写FileChannel的时候被interrupt，channel会被关闭，所有线程都不能再用它
+         */
+        void reopen() throws IOException {
+            raf = new RandomAccessFile(file, "rw");
+            channel = raf.getChannel();
+        }
+
+        void close() {
+            try {
+                raf.close();
+            } catch (IOException ignored) { }
+        }
+    }
+
+    /** Where the current record of a key lives. */
+    private static class Location {
+        final Segment segment;
+        final long offset;
+        final int length;
+
+        Location(Segment segment, long offset, int length) {
+            this.segment = segment;
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+
+    /** A record read back from a segment. */
+    private static class Record {
+        int type;
+        String key;
+        Entry entry;
+    }
+
+    /** The root directory to use for the cache. */
+    private final File mRootDirectory;
+
+    /** The maximum size of the live entries in bytes. */
+    private final int mMaxCacheSizeInBytes;
+
+    /** Size at which the active segment is sealed. */
+    private final int mSegmentBytes;
+
+    /** Index of the live records in access order; guarded by this. */
+    private final LinkedHashMap<String, Location> mIndex =
+            new LinkedHashMap<String, Location>(16, .75f, true);
+
+    /** Open segments by id, oldest first; guarded by this. */
+    private final TreeMap<Integer, Segment> mSegments = new TreeMap<Integer, Segment>();
+
+    /** The segment records are appended to; guarded by this. */
+    private Segment mActive;
+
+    /** Total size of the live records; guarded by this. */
+    private long mLiveBytes = 0;
+
+    /** Bumped by {@link #clear()} so that a running compaction gives up; guarded by this. */
+    private int mGeneration = 0;
+
+    /** Whether the compaction thread is running; guarded by this. */
+    private boolean mCompacting = false;
+
+    /** Whether {@link #initialize()} has built the index; guarded by this. */
+    private boolean mInitialized = false;
+
+    /**
+     * Constructs an instance of the LogStructuredCache at the specified directory.
+     *
+     * @param rootDirectory The root directory of the cache.
+     * @param maxCacheSizeInBytes The maximum size of the cache in bytes.
+     * @param segmentBytes Size at which a segment file is sealed and a new one started.
+     */
+    public LogStructuredCache(File rootDirectory, int maxCacheSizeInBytes, int segmentBytes) {
+        mRootDirectory = rootDirectory;
+        mMaxCacheSizeInBytes = maxCacheSizeInBytes;
+        mSegmentBytes = segmentBytes;
+    }
+
+    /**
+     * Constructs an instance of the LogStructuredCache at the specified directory.
+     *
+     * @param rootDirectory The root directory of the cache.
+     * @param maxCacheSizeInBytes The maximum size of the cache in bytes.
+     */
+    public LogStructuredCache(File rootDirectory, int maxCacheSizeInBytes) {
+        this(rootDirectory, maxCacheSizeInBytes, DEFAULT_SEGMENT_BYTES);
+    }
+
+    /**
+     * Constructs an instance of the LogStructuredCache at the specified directory using
+     * the default maximum cache size of 5MB.
+     * @param rootDirectory The root directory of the cache.
+     */
+    public LogStructuredCache(File rootDirectory) {
+        this(rootDirectory, DEFAULT_DISK_USAGE_BYTES);
+    }
+
+    /**
+     * Rebuilds the index by scanning the segment files, oldest first. Creates the root
+     * directory if necessary.
+     * 按照从旧到新的顺序扫描所有的segment，重建索引
+     * 只有最新的segment可能因为崩溃留下写了一半的记录
+     * 校验它的CRC，把坏掉的尾巴截掉
+     *
+     * <p>Does nothing once the index is built; RequestQueue.start() calls it again after every
+     * stop.</p>
+     */
+    @Override
+    public synchronized void initialize() {
+        if (mInitialized) {
+            // 已经打开了，再扫描一次会重复打开segment，泄漏channel，并且把旧记录重放到索引上
+            return;
+        }
+        if (!mRootDirectory.exists() && !mRootDirectory.mkdirs()) {
+            VolleyLog.e("Unable to create cache dir %s", mRootDirectory.getAbsolutePath());
+            return;
+        }
+        File[] files = mRootDirectory.listFiles();
+        List<Integer> ids = new ArrayList<Integer>();
+        if (files != null) {
+            for (File file : files) {
+                int id = segmentId(file.getName());
+                if (id >= 0) {
+                    ids.add(id);
+                }
+            }
+        }
+        Integer[] sorted = ids.toArray(new Integer[ids.size()]);
+        Arrays.sort(sorted);
+        for (int i = 0; i < sorted.length; i++) {
+            try {
+                Segment segment = new Segment(sorted[i], segmentFile(sorted[i]));
+                mSegments.put(segment.id, segment);
+                scan(segment, i == sorted.length - 1);
+            } catch (IOException e) {
+                VolleyLog.e(e, "Unable to read cache segment %d", sorted[i]);
+            }
+        }
+        try {
+            if (mSegments.isEmpty()) {
+                roll();
+            } else {
+                mActive = mSegments.lastEntry().getValue();
+            }
+        } catch (IOException e) {
+            VolleyLog.e(e, "Unable to open cache segment");
+        }
+        mInitialized = true;
+        scheduleCompactionIfNeeded();
+    }
+
+    /**
+     * Replays the records of one segment into the index.
+     *
+     * @param verify Whether to check every record's CRC and cut off a torn tail
+     */
+    private void scan(Segment segment, boolean verify) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+        long offset = 0;
+        while (offset + RECORD_HEADER_BYTES <= segment.size) {
+            header.clear();
+            readFully(segment.channel, header, offset);
+            header.flip();
+            int magic = header.getInt();
+            int payloadLength = header.getInt();
+            int crc = header.getInt();
+            int length = RECORD_HEADER_BYTES + payloadLength;
+            if (magic != RECORD_MAGIC || payloadLength < 0 || offset + length > segment.size) {
+                break;
+            }
+            byte[] payload = new byte[payloadLength];
+            readFully(segment.channel, ByteBuffer.wrap(payload), offset + RECORD_HEADER_BYTES);
+            if (verify && crc != crcOf(payload)) {
+                break;
+            }
+            Record record = parse(payload, false);
+            Location previous = mIndex.remove(record.key);
+            if (previous != null) {
+                previous.segment.liveBytes -= previous.length;
+                mLiveBytes -= previous.length;
+            }
+            if (record.type == TYPE_PUT) {
+                mIndex.put(record.key, new Location(segment, offset, length));
+                segment.liveBytes += length;
+                mLiveBytes += length;
+            }
+            offset += length;
+        }
+        if (offset < segment.size) {
+            VolleyLog.d("Cutting %d bytes of torn records off cache segment %d",
+                    segment.size - offset, segment.id);
+            segment.channel.truncate(offset);
+            segment.size = offset;
+        }
+    }
+
+    @Override
+    public Entry get(String key) {
+        for (int attempt = 0; attempt < 2; attempt++) {
+            Location location;
+            synchronized (this) {
+                location = mIndex.get(key);
+            }
+            if (location == null) {
+                return null;
+            }
+            try {
+                byte[] payload = new byte[location.length - RECORD_HEADER_BYTES];
+                readFully(location.segment.channel, ByteBuffer.wrap(payload),
+                        location.offset + RECORD_HEADER_BYTES);
+                return parse(payload, true).entry;
+            } catch (ClosedByInterruptException e) {
+                return null;
+            } catch (ClosedChannelException e) {
+                // Compacted away, or closed by another thread's interrupt; try once more.
+                reopenIfLive(location.segment);
+            } catch (IOException e) {
+                VolleyLog.d("%s: %s", key, e.toString());
+                remove(key);
+                return null;
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public synchronized void put(String key, Entry entry) {
+        byte[] record;
+        try {
+            record = encode(TYPE_PUT, key, entry);
+        } catch (IOException e) {
+            VolleyLog.d("Could not encode entry for key=%s", key);
+            return;
+        }
+        pruneIfNeeded(record.length);
+        try {
+            Location location = append(record);
+            replace(key, location);
+        } catch (IOException e) {
+            VolleyLog.d("Could not write entry for key=%s: %s", key, e.toString());
+            removeFromIndex(key);
+        }
+        scheduleCompactionIfNeeded();
+    }
+
+    @Override
+    public synchronized void invalidate(String key, boolean fullExpire) {
+        Entry entry = get(key);
+        if (entry != null) {
+            entry.softTtl = 0;
+            if (fullExpire) {
+                entry.ttl = 0;
+            }
+            put(key, entry);
+        }
+    }
+
+    @Override
+    public synchronized void remove(String key) {
+        if (!mIndex.containsKey(key)) {
+            return;
+        }
+        removeFromIndex(key);
+        writeTombstone(key);
+        scheduleCompactionIfNeeded();
+    }
+
+    /**
+     * Clears the cache. Deletes all segment files from disk.
+     */
+    @Override
+    public synchronized void clear() {
+        for (Segment segment : mSegments.values()) {
+            segment.close();
+            segment.file.delete();
+        }
+        mSegments.clear();
+        mActive = null;
+        mIndex.clear();
+        mLiveBytes = 0;
+        mGeneration++;
+        try {
+            roll();
+        } catch (IOException e) {
+            VolleyLog.e(e, "Unable to open cache segment");
+        }
+        VolleyLog.d("Cache cleared.");
+    }
+
+    /**
+     * Forces the active segment to disk.
+     */
+    @Override
+    public synchronized void flush() throws IOException {
+        forceActive();
+    }
+
+    /**
+     * Forces the active segment to disk, reopening it first if an interrupted read or write
+     * closed its channel; caller holds the lock.
+     */
+    private void forceActive() throws IOException {
+        if (mActive == null) {
+            return;
+        }
+        if (!mActive.channel.isOpen()) {
+            mActive.reopen();
+        }
+        mActive.channel.force(false);
+    }
+
+    /** Appends a record to the active segment, sealing it first if it is full. */
+    private Location append(byte[] record) throws IOException {
+        if (mActive == null || mActive.size >= mSegmentBytes) {
+            roll();
+        }
+        Segment segment = mActive;
+        if (!segment.channel.isOpen()) {
+            segment.reopen();
+        }
+        long offset = segment.size;
+        ByteBuffer buffer = ByteBuffer.wrap(record);
+        while (buffer.hasRemaining()) {
+            segment.channel.write(buffer, offset + buffer.position());
+        }
+        segment.size += record.length;
+        return new Location(segment, offset, record.length);
+    }
+
+    /** Reopens a segment whose channel was closed, unless it has been dropped. */
+    private synchronized void reopenIfLive(Segment segment) {
+        if (mSegments.get(segment.id) != segment || segment.channel.isOpen()) {
+            return;
+        }
+        try {
+            segment.reopen();
+        } catch (IOException e) {
+            VolleyLog.e(e, "Unable to reopen cache segment %d", segment.id);
+        }
+    }
+
+    /** Seals the active segment and starts a new one. */
+    private void roll() throws IOException {
+        forceActive();
+        int id = mSegments.isEmpty() ? 0 : mSegments.lastKey() + 1;
+        Segment segment = new Segment(id, segmentFile(id));
+        mSegments.put(id, segment);
+        mActive = segment;
+    }
+
+    /** Points the key at a new record and accounts for the one it replaces. */
+    private void replace(String key, Location location) {
+        removeFromIndex(key);
+        mIndex.put(key, location);
+        location.segment.liveBytes += location.length;
+        mLiveBytes += location.length;
+    }
+
+    private void removeFromIndex(String key) {
+        Location previous = mIndex.remove(key);
+        if (previous != null) {
+            previous.segment.liveBytes -= previous.length;
+            mLiveBytes -= previous.length;
+        }
+    }
+
+    /**
+     * Appends a record marking the key as removed, so that its older records stay dead after a
+     * restart. Tombstones never count as live.
+     */
+    private void writeTombstone(String key) {
+        try {
+            append(encode(TYPE_REMOVE, key, null));
+        } catch (IOException e) {
+            VolleyLog.d("Could not write tombstone for key=%s: %s", key, e.toString());
+        }
+    }
+
+    /**
+     * Evicts the least recently used entries until the given number of bytes fits under the
+     * high water mark.
+     */
+    private void pruneIfNeeded(int neededSpace) {
+        if (mLiveBytes + neededSpace < mMaxCacheSizeInBytes) {
+            return;
+        }
+        int prunedFiles = 0;
+        List<String> pruned = new ArrayList<String>();
+        Iterator<Map.Entry<String, Location>> iterator = mIndex.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<String, Location> entry = iterator.next();
+            Location location = entry.getValue();
+            location.segment.liveBytes -= location.length;
+            mLiveBytes -= location.length;
+            iterator.remove();
+            pruned.add(entry.getKey());
+            prunedFiles++;
+
+            if (mLiveBytes + neededSpace < mMaxCacheSizeInBytes * HYSTERESIS_FACTOR) {
+                break;
+            }
+        }
+        // 淘汰的entry也要写一条删除记录，否则重启之后扫描segment又会把它们找回来
+        for (String key : pruned) {
+            writeTombstone(key);
+        }
+        if (VolleyLog.DEBUG) {
+            VolleyLog.v("pruned %d entries, %d bytes live", prunedFiles, mLiveBytes);
+        }
+    }
+
+    /** Starts the compaction thread if a sealed segment is mostly dead. */
+    private void scheduleCompactionIfNeeded() {
+        if (mCompacting || findCompactionCandidate() == null) {
+            return;
+        }
+        mCompacting = true;
+        new Thread("VolleyCacheCompactor") {
+            @Override
+            public void run() {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                compactAll();
+            }
+        }.start();
+    }
+
+    /** Returns a sealed segment worth compacting, oldest first; caller holds the lock. */
+    private Segment findCompactionCandidate() {
+        for (Segment segment : mSegments.values()) {
+            if (segment == mActive) {
+                continue;
+            }
+            if (segment.size > 0
+                    && segment.size - segment.liveBytes >= segment.size * COMPACTION_THRESHOLD) {
+                return segment;
+            }
+        }
+        return null;
+    }
+
+    private void compactAll() {
+        while (true) {
+            Segment segment;
+            int generation;
+            synchronized (this) {
+                segment = findCompactionCandidate();
+                if (segment == null) {
+                    mCompacting = false;
+                    return;
+                }
+                generation = mGeneration;
+            }
+            try {
+                compact(segment, generation);
+            } catch (IOException e) {
+                VolleyLog.e(e, "Compaction of cache segment %d failed", segment.id);
+                synchronized (this) {
+                    mCompacting = false;
+                }
+                return;
+            }
+        }
+    }
+
+    /**
+     * Moves the live records of a sealed segment, and the tombstones older segments still
+     * need, into the active segment, then deletes it. Sealed segments never change, so they are
+     * read without the lock.
+     * 把一个已经封存的segment里面还有效的记录搬到当前的segment里面，然后删除这个文件
+     */
+    private void compact(Segment segment, int generation) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+        long offset = 0;
+        long size = segment.size;
+        while (offset + RECORD_HEADER_BYTES <= size) {
+            header.clear();
+            readFully(segment.channel, header, offset);
+            header.flip();
+            header.getInt();
+            int length = RECORD_HEADER_BYTES + header.getInt();
+            byte[] record = new byte[length];
+            readFully(segment.channel, ByteBuffer.wrap(record), offset);
+            Record parsed = parse(Arrays.copyOfRange(record, RECORD_HEADER_BYTES, length), false);
+            synchronized (this) {
+                if (generation != mGeneration) {
+                    return;
+                }
+                Location current = mIndex.get(parsed.key);
+                if (parsed.type == TYPE_PUT && current != null && current.segment == segment
+                        && current.offset == offset) {
+                    replace(parsed.key, append(record));
+                } else if (parsed.type == TYPE_REMOVE && current == null
+                        && mSegments.firstKey() < segment.id) {
+                    append(record);
+                }
+            }
+            offset += length;
+        }
+        synchronized (this) {
+            if (generation != mGeneration) {
+                return;
+            }
+            mSegments.remove(segment.id);
+            segment.close();
+            if (!segment.file.delete()) {
+                VolleyLog.d("Could not delete cache segment %s", segment.file.getName());
+            }
+        }
+    }
+
+    private File segmentFile(int id) {
+        return new File(mRootDirectory, String.format("%s%08d%s", SEGMENT_PREFIX, id,
+                SEGMENT_SUFFIX));
+    }
+
+    private static int segmentId(String name) {
+        if (!name.startsWith(SEGMENT_PREFIX) || !name.endsWith(SEGMENT_SUFFIX)) {
+            return -1;
+        }
+        try {
+            return Integer.parseInt(name.substring(SEGMENT_PREFIX.length(),
+                    name.length() - SEGMENT_SUFFIX.length()));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /** Builds a complete record, header included. */
+    private static byte[] encode(int type, String key, Entry entry) throws IOException {
+        ByteArrayOutputStream payload = new ByteArrayOutputStream(
+                entry == null || entry.data == null ? 64 : entry.data.length + 256);
+        payload.write(type);
+        DiskBasedCache.writeString(payload, key);
+        if (type == TYPE_PUT) {
+            DiskBasedCache.writeString(payload, entry.etag == null ? "" : entry.etag);
+            DiskBasedCache.writeLong(payload, entry.serverDate);
+            DiskBasedCache.writeLong(payload, entry.lastModified);
+            DiskBasedCache.writeLong(payload, entry.ttl);
+            DiskBasedCache.writeLong(payload, entry.softTtl);
+            DiskBasedCache.writeStringStringMap(entry.responseHeaders, payload);
+            byte[] data = entry.data == null ? new byte[0] : entry.data;
+            DiskBasedCache.writeInt(payload, data.length);
+            payload.write(data);
+        }
+        byte[] body = payload.toByteArray();
+        ByteArrayOutputStream record = new ByteArrayOutputStream(RECORD_HEADER_BYTES + body.length);
+        DiskBasedCache.writeInt(record, RECORD_MAGIC);
+        DiskBasedCache.writeInt(record, body.length);
+        DiskBasedCache.writeInt(record, crcOf(body));
+        record.write(body);
+        return record.toByteArray();
+    }
+
+    /**
+     * Parses a record payload.
+     *
+     * @param withEntry Whether to build the entry, or only read the type and key
+     */
+    private static Record parse(byte[] payload, boolean withEntry) throws IOException {
+        InputStream is = new ByteArrayInputStream(payload);
+        Record record = new Record();
+        record.type = is.read();
+        record.key = DiskBasedCache.readString(is);
+        if (withEntry && record.type == TYPE_PUT) {
+            Entry entry = new Entry();
+            String etag = DiskBasedCache.readString(is);
+            entry.etag = etag.equals("") ? null : etag;
+            entry.serverDate = DiskBasedCache.readLong(is);
+            entry.lastModified = DiskBasedCache.readLong(is);
+            entry.ttl = DiskBasedCache.readLong(is);
+            entry.softTtl = DiskBasedCache.readLong(is);
+            entry.responseHeaders = DiskBasedCache.readStringStringMap(is);
+            int length = DiskBasedCache.readInt(is);
+            if (length < 0 || length > is.available()) {
+                throw new IOException("Corrupt cache record for " + record.key);
+            }
+            entry.data = new byte[length];
+            is.read(entry.data, 0, length);
+            record.entry = entry;
+        }
+        return record;
+    }
+
+    private static int crcOf(byte[] payload) {
+        CRC32 crc = new CRC32();
+        crc.update(payload, 0, payload.length);
+        return (int) crc.getValue();
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position)
+            throws IOException {
+        while (buffer.hasRemaining()) {
+            int n = channel.read(buffer, position + buffer.position());
+            if (n < 0) {
+                throw new IOException("Unexpected end of cache segment");
+            }
+        }
+    }
+}
@@ -0,0 +1,215 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley.toolbox;
+
+import com.android.volley.AuthFailureError;
+import com.android.volley.Network;
+import com.android.volley.NetworkError;
+import com.android.volley.NetworkResponse;
+import com.android.volley.NoConnectionError;
+import com.android.volley.ParseError;
+import com.android.volley.Request;
+import com.android.volley.Request.Method;
+import com.android.volley.ServerError;
+import com.android.volley.TimeoutError;
+import com.android.volley.VolleyError;
+import com.android.volley.VolleyLog;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A {@link Network} that lets concurrent identical GET and HEAD requests that bypass the cache
+ * share a single call to the wrapped network.
+ * 不走缓存的相同GET/HEAD请求同时在处理的时候，只真正发出一次网络请求，其他的等着共享这次的结果
+ * 每个request还是会用自己的parseNetworkResponse()去解析共享的NetworkResponse
+ *
+ * <p>Requests are identical when they have the same method, URL and values for the header
+ * names given to the constructor. The first such request performs the call; the others block
+ * until it completes and then receive the same {@link NetworkResponse}, or a copy of the
+ * {@link VolleyError} of the same type, so that no two dispatchers change one error; errors of
+ * a type that cannot be copied faithfully are shared. If the first request was canceled and its
+ * call failed, a waiting request that is not canceled performs the call itself instead. A
+ * waiting request that is canceled stops waiting. The response data is shared and must not be
+ * modified while parsing. Cacheable requests are passed through, since the request queue
+ * already coalesces them by cache key.</p>
+ */
+public class SingleFlightNetwork implements Network {
+
+    /** One call to the wrapped network, shared by every identical request that joins it. */
+    private static class Flight {
+        /** Whether the call completed; guarded by the flight. */
+        boolean done;
+        NetworkResponse response;
+        VolleyError error;
+        /** Whether the request that performed the call was canceled when it failed. */
+        boolean leaderCanceled;
+    }
+
+    private final Network mNetwork;
+
+    /** Names of the headers that take part in the key. */
+    private final String[] mKeyHeaders;
+
+    /** Calls in progress, by key. */
+    private final ConcurrentHashMap<String, Flight> mFlights =
+            new ConcurrentHashMap<String, Flight>();
+
+    /**
+     * @param network The network that performs the calls
+     * @param keyHeaders Names of the request headers whose values must match as well, for
+     *        example {@code "Authorization"} or {@code "Accept-Language"}
+     */
+    public SingleFlightNetwork(Network network, String... keyHeaders) {
+        mNetwork = network;
+        mKeyHeaders = keyHeaders.clone();
+    }
+
+    @Override
+    public NetworkResponse performRequest(Request<?> request) throws VolleyError {
+        if (request.shouldCache() || !isIdempotent(request.getMethod())) {
+            return mNetwork.performRequest(request);
+        }
+
+        String key = flightKey(request);
+        while (true) {
+            Flight flight = new Flight();
+            Flight existing = mFlights.putIfAbsent(key, flight);
+            if (existing == null) {
+                return lead(request, key, flight);
+            }
+            request.addMarker("single-flight-join");
+            await(request, existing);
+            if (existing.error == null) {
+                return existing.response;
+            }
+            if (!existing.leaderCanceled || request.isCanceled()) {
+                // 每个等待者抛自己的一份，dispatcher会修改error的networkTimeMs
+                throw copyOf(existing.error);
+            }
+            // 发起请求的那个被取消了，它的失败不代表这个请求也会失败，重新来过，自己去发
+            request.addMarker("single-flight-relead");
+        }
+    }
+
+    /** Performs the call for {@code flight} and publishes its outcome to the requests joining. */
+    private NetworkResponse lead(Request<?> request, String key, Flight flight)
+            throws VolleyError {
+        try {
+            flight.response = mNetwork.performRequest(request);
+            return flight.response;
+        } catch (VolleyError e) {
+            flight.error = e;
+            flight.leaderCanceled = request.isCanceled();
+            throw e;
+        } catch (RuntimeException e) {
+            flight.error = new VolleyError(e);
+            flight.leaderCanceled = request.isCanceled();
+            throw e;
+        } finally {
+            mFlights.remove(key, flight);
+            synchronized (flight) {
+                flight.done = true;
+                flight.notifyAll();
+            }
+        }
+    }
+
+    private static boolean isIdempotent(int method) {
+        return method == Method.GET || method == Method.HEAD;
+    }
+
+    private String flightKey(Request<?> request) throws VolleyError {
+        StringBuilder key = new StringBuilder();
+        key.append(request.getMethod()).append(' ').append(request.getUrl());
+        if (mKeyHeaders.length > 0) {
+            Map<String, String> headers = request.getHeaders();
+            for (String name : mKeyHeaders) {
+                key.append('\n').append(name).append(": ").append(headers.get(name));
+            }
+        }
+        return key.toString();
+    }
+
+    /**
+     * Waits for a flight to complete, or for the waiting request to be canceled.
+     * 等待的时候request被取消了，cancel()会通过abort action把它叫醒
+     */
+    private static void await(Request<?> request, final Flight flight) throws VolleyError {
+        request.setAbortAction(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (flight) {
+                    flight.notifyAll();
+                }
+            }
+        });
+        try {
+            synchronized (flight) {
+                while (!flight.done) {
+                    if (request.isCanceled()) {
+                        request.addMarker("network-aborted");
+                        throw new VolleyError("Canceled while waiting for a shared network call");
+                    }
+                    flight.wait();
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            VolleyLog.d("Interrupted while waiting for a shared network call");
+            throw new VolleyError(e);
+        } finally {
+            request.setAbortAction(null);
+        }
+    }
+
+    /**
+     * Returns a new error of exactly the same type as {@code error}, with the same response,
+     * caused by {@code error}; or {@code error} itself if its type is not one of Volley's own or
+     * carries state a copy would lose, such as the resolution intent of an
+     * {@link AuthFailureError}.
+     * 不认识的类型(比如应用自己的子类)没法原样复制，就直接共享原来的对象
+     */
+    static VolleyError copyOf(VolleyError error) {
+        NetworkResponse response = error.networkResponse;
+        Class<?> type = error.getClass();
+        VolleyError copy;
+        if (type == TimeoutError.class) {
+            copy = new TimeoutError();
+        } else if (type == NoConnectionError.class) {
+            copy = new NoConnectionError(error);
+        } else if (type == NetworkError.class) {
+            copy = response != null ? new NetworkError(response) : new NetworkError(error);
+        } else if (type == ServerError.class) {
+            copy = response != null ? new ServerError(response) : new ServerError();
+        } else if (type == AuthFailureError.class
+                && ((AuthFailureError) error).getResolutionIntent() == null) {
+            copy = response != null ? new AuthFailureError(response)
+                    : new AuthFailureError(error.getMessage(), error);
+        } else if (type == ParseError.class) {
+            copy = response != null ? new ParseError(response) : new ParseError(error);
+        } else if (type == VolleyError.class) {
+            copy = response != null ? new VolleyError(response) : new VolleyError(error);
+        } else {
+            return error;
+        }
+        if (copy.getCause() == null) {
+            copy.initCause(error);
+        }
+        return copy;
+    }
+}
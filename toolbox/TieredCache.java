@@ -0,0 +1,322 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley.toolbox;
+
+import com.android.volley.Cache;
+import com.android.volley.VolleyLog;
+
+import java.io.Flushable;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A {@link Cache} with an in-memory LRU tier, bounded by byte size, in front of another cache
+ * such as {@link DiskBasedCache}.
+ * 两级缓存：内存里面的LRU缓存放在磁盘缓存前面
+ * 热门的数据直接从内存返回，不需要打开文件、解析header、复制整个body
+ *
+ * <p>Reads that miss the memory tier and hit the backing cache promote the entry into memory;
+ * writes go to both tiers, holding a per-key lock so that writes of one key reach both tiers in
+ * the same order. A promotion is skipped if the key was written, invalidated or removed while
+ * the backing read was in progress, so it never brings back an older entry.
+ * Entries handed out are shallow copies sharing the response body, so callers may change the
+ * metadata of an entry but must not modify its data.</p>
+ */
+public class TieredCache implements Cache, Flushable {
+
+    /** Reads of one key from the backing cache in progress, and how often the key changed. */
+    private static class PendingRead {
+        int readers;
+        long generation;
+    }
+
+    /** Rough per-entry overhead of the memory tier beyond the body and headers. */
+    private static final int ENTRY_OVERHEAD_BYTES = 96;
+
+    /** Number of locks the keys are spread over for writes. */
+    private static final int LOCK_STRIPES = 32;
+
+    /** The backing cache. */
+    private final Cache mBacking;
+
+    /** Upper bound on the estimated size of the memory tier. */
+    private final long mMaxMemoryBytes;
+
+    /** The memory tier, in access order; guarded by this. */
+    private final LinkedHashMap<String, Entry> mMemory =
+            new LinkedHashMap<String, Entry>(16, .75f, true);
+
+    /** Estimated size of the memory tier; guarded by this. */
+    private long mMemoryBytes = 0;
+
+    /**
+     * Held while a key is written, invalidated or removed in both tiers, by key hash.
+     * 同一个key的写操作要按同样的顺序到达两级缓存，否则内存和磁盘里面可能是不同的entry
+     */
+    private final Object[] mWriteLocks = new Object[LOCK_STRIPES];
+
+    /** Keys being read from the backing cache; guarded by this. */
+    private final HashMap<String, PendingRead> mPendingReads =
+            new HashMap<String, PendingRead>();
+
+    private final AtomicLong mMemoryHits = new AtomicLong();
+    private final AtomicLong mBackingHits = new AtomicLong();
+    private final AtomicLong mMisses = new AtomicLong();
+
+    /**
+     * @param backing The cache behind the memory tier
+     * @param maxMemoryBytes Upper bound on the estimated size of the memory tier
+     */
+    public TieredCache(Cache backing, long maxMemoryBytes) {
+        if (maxMemoryBytes <= 0) {
+            throw new IllegalArgumentException("maxMemoryBytes must be positive");
+        }
+        mBacking = backing;
+        mMaxMemoryBytes = maxMemoryBytes;
+        for (int i = 0; i < LOCK_STRIPES; i++) {
+            mWriteLocks[i] = new Object();
+        }
+    }
+
+    /** Returns the number of reads served from memory. */
+    public long getMemoryHitCount() {
+        return mMemoryHits.get();
+    }
+
+    /** Returns the number of reads served from the backing cache. */
+    public long getBackingHitCount() {
+        return mBackingHits.get();
+    }
+
+    /** Returns the number of reads neither tier could serve. */
+    public long getMissCount() {
+        return mMisses.get();
+    }
+
+    /** Returns the estimated size of the memory tier. */
+    public synchronized long getMemoryBytes() {
+        return mMemoryBytes;
+    }
+
+    @Override
+    public Entry get(String key) {
+        Entry entry;
+        synchronized (this) {
+            entry = mMemory.get(key);
+            if (entry != null) {
+                entry = copyOf(entry);
+            }
+        }
+        if (entry != null) {
+            mMemoryHits.incrementAndGet();
+            return entry;
+        }
+
+        // 读磁盘之前记下这个key的版本，读完如果版本变了，说明中间有put/remove，不能再放进内存
+        PendingRead read;
+        long generation;
+        synchronized (this) {
+            read = mPendingReads.get(key);
+            if (read == null) {
+                read = new PendingRead();
+                mPendingReads.put(key, read);
+            }
+            read.readers++;
+            generation = read.generation;
+        }
+        try {
+            entry = mBacking.get(key);
+        } finally {
+            synchronized (this) {
+                if (--read.readers == 0) {
+                    mPendingReads.remove(key);
+                }
+                if (entry != null && read.generation == generation) {
+                    putInMemory(key, copyOf(entry));
+                }
+            }
+        }
+        if (entry == null) {
+            mMisses.incrementAndGet();
+            return null;
+        }
+        mBackingHits.incrementAndGet();
+        return entry;
+    }
+
+    @Override
+    public void put(String key, Entry entry) {
+        synchronized (lockFor(key)) {
+            mBacking.put(key, entry);
+            synchronized (this) {
+                putInMemory(key, copyOf(entry));
+                changed(key);
+            }
+        }
+    }
+
+    @Override
+    public void initialize() {
+        mBacking.initialize();
+    }
+
+    @Override
+    public void invalidate(String key, boolean fullExpire) {
+        synchronized (lockFor(key)) {
+            synchronized (this) {
+                Entry entry = mMemory.get(key);
+                if (entry != null) {
+                    entry.softTtl = 0;
+                    if (fullExpire) {
+                        entry.ttl = 0;
+                    }
+                }
+            }
+            mBacking.invalidate(key, fullExpire);
+            synchronized (this) {
+                changed(key);
+            }
+        }
+    }
+
+    @Override
+    public void remove(String key) {
+        synchronized (lockFor(key)) {
+            synchronized (this) {
+                removeFromMemory(key);
+            }
+            mBacking.remove(key);
+            synchronized (this) {
+                changed(key);
+            }
+        }
+    }
+
+    @Override
+    public void clear() {
+        clearHoldingLocks(0);
+    }
+
+    /** Takes every write lock, in order, then clears both tiers. */
+    private void clearHoldingLocks(int stripe) {
+        if (stripe < LOCK_STRIPES) {
+            synchronized (mWriteLocks[stripe]) {
+                clearHoldingLocks(stripe + 1);
+            }
+            return;
+        }
+        synchronized (this) {
+            mMemory.clear();
+            mMemoryBytes = 0;
+        }
+        mBacking.clear();
+        synchronized (this) {
+            for (PendingRead read : mPendingReads.values()) {
+                read.generation++;
+            }
+        }
+    }
+
+    /**
+     * Flushes the backing cache if it buffers writes.
+     */
+    @Override
+    public void flush() throws IOException {
+        if (mBacking instanceof Flushable) {
+            ((Flushable) mBacking).flush();
+        }
+    }
+
+    private synchronized void putInMemory(String key, Entry entry) {
+        long size = sizeOf(key, entry);
+        removeFromMemory(key);
+        if (size > mMaxMemoryBytes) {
+            // Would evict everything else; leave it to the backing cache.
+            return;
+        }
+        mMemory.put(key, entry);
+        mMemoryBytes += size;
+
+        Iterator<Map.Entry<String, Entry>> iterator = mMemory.entrySet().iterator();
+        while (mMemoryBytes > mMaxMemoryBytes && iterator.hasNext()) {
+            Map.Entry<String, Entry> eldest = iterator.next();
+            mMemoryBytes -= sizeOf(eldest.getKey(), eldest.getValue());
+            iterator.remove();
+        }
+        if (VolleyLog.DEBUG) {
+            VolleyLog.v("Memory tier holds %d entries, %d bytes", mMemory.size(), mMemoryBytes);
+        }
+    }
+
+    /** Returns the write lock for a key. */
+    private Object lockFor(String key) {
+        return mWriteLocks[(key.hashCode() & 0x7fffffff) % LOCK_STRIPES];
+    }
+
+    /**
+     * Makes reads of a key from the backing cache that are in progress skip their promotion;
+     * caller holds the lock and has already changed the backing cache.
+     */
+    private void changed(String key) {
+        PendingRead read = mPendingReads.get(key);
+        if (read != null) {
+            read.generation++;
+        }
+    }
+
+    /** Removes a key from the memory tier; caller holds the lock. */
+    private void removeFromMemory(String key) {
+        Entry previous = mMemory.remove(key);
+        if (previous != null) {
+            mMemoryBytes -= sizeOf(key, previous);
+        }
+    }
+
+    private static long sizeOf(String key, Entry entry) {
+        long size = ENTRY_OVERHEAD_BYTES + 2L * key.length();
+        if (entry.data != null) {
+            size += entry.data.length;
+        }
+        if (entry.etag != null) {
+            size += 2L * entry.etag.length();
+        }
+        for (Map.Entry<String, String> header : entry.responseHeaders.entrySet()) {
+            size += 2L * (header.getKey().length() + header.getValue().length());
+        }
+        return size;
+    }
+
+    /**
+     * Copies an entry so that the memory tier's copy is not affected by callers changing the
+     * metadata (BasicNetwork merges 304 headers into the entry it sent).
+     */
+    static Entry copyOf(Entry entry) {
+        Entry copy = new Entry();
+        copy.data = entry.data;
+        copy.etag = entry.etag;
+        copy.serverDate = entry.serverDate;
+        copy.lastModified = entry.lastModified;
+        copy.ttl = entry.ttl;
+        copy.softTtl = entry.softTtl;
+        copy.responseHeaders = new HashMap<String, String>(entry.responseHeaders);
+        return copy;
+    }
+}
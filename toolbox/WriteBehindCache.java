@@ -0,0 +1,245 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley.toolbox;
+
+import com.android.volley.Cache;
+import com.android.volley.VolleyLog;
+
+import java.io.Flushable;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A {@link Cache} that queues puts and writes them to another cache, such as
+ * {@link DiskBasedCache}, on an executor, so that the network dispatcher can deliver a response
+ * without waiting for the disk.
+ * 异步写缓存：put()只是把entry放进一个有界的队列，由后台任务写到真正的缓存里面
+ * NetworkDispatcher不需要等磁盘写完就可以分发response
+ *
+ * <p>Repeated puts of a key that has not been written yet replace the queued entry, so only the
+ * last one is written. Reads of queued keys are answered from the queue. When the queue is
+ * full, put blocks until the writer catches up. {@link #flush()} writes everything queued;
+ * {@link com.android.volley.RequestQueue#stop()} and
+ * {@link com.android.volley.RequestQueue#stop(long)} call it.</p>
+ *
+ * <p>Removals, invalidations and clears go to the backing cache directly, after waiting for a
+ * write in progress, so they are never overtaken by an older queued put.</p>
+ */
+public class WriteBehindCache implements Cache, Flushable {
+
+    /** The backing cache. */
+    private final Cache mBacking;
+
+    private final Executor mExecutor;
+
+    /** Maximum number of queued puts. */
+    private final int mMaxPending;
+
+    /** Queued puts in the order they were first made; guarded by this. */
+    private final LinkedHashMap<String, Entry> mPending = new LinkedHashMap<String, Entry>();
+
+    /** The put being written to the backing cache, if any; guarded by this. */
+    private String mWritingKey;
+    private Entry mWritingEntry;
+
+    /** Whether a write task is scheduled or running; guarded by this. */
+    private boolean mScheduled = false;
+
+    /**
+     * Held while changing the backing cache, so that writes, removals and clears reach it in
+     * the order they were made.
+     */
+    private final Object mWriteLock = new Object();
+
+    private final AtomicLong mCoalescedCount = new AtomicLong();
+
+    /** Writes the queue until it is empty; at most one runs at a time. */
+    private final Runnable mWriteTask = new Runnable() {
+        @Override
+        public void run() {
+            while (true) {
+                writePending();
+                synchronized (WriteBehindCache.this) {
+                    if (mPending.isEmpty()) {
+                        mScheduled = false;
+                        return;
+                    }
+                }
+            }
+        }
+    };
+
+    /**
+     * @param backing The cache to write to
+     * @param executor Runs the writes; one task at a time is submitted
+     * @param maxPending Number of queued puts at which put blocks
+     */
+    public WriteBehindCache(Cache backing, Executor executor, int maxPending) {
+        if (maxPending < 1) {
+            throw new IllegalArgumentException("maxPending must be at least 1");
+        }
+        mBacking = backing;
+        mExecutor = executor;
+        mMaxPending = maxPending;
+    }
+
+    /** Returns the number of puts waiting to be written. */
+    public synchronized int getPendingCount() {
+        return mPending.size();
+    }
+
+    /** Returns the number of puts replaced by a later put of the same key before being written. */
+    public long getCoalescedCount() {
+        return mCoalescedCount.get();
+    }
+
+    @Override
+    public Entry get(String key) {
+        synchronized (this) {
+            Entry pending = mPending.get(key);
+            if (pending == null && key.equals(mWritingKey)) {
+                pending = mWritingEntry;
+            }
+            if (pending != null) {
+                return TieredCache.copyOf(pending);
+            }
+        }
+        return mBacking.get(key);
+    }
+
+    @Override
+    public void put(String key, Entry entry) {
+        // The caller may change the entry afterwards; BasicNetwork merges 304 headers into it.
+        Entry copy = TieredCache.copyOf(entry);
+        synchronized (this) {
+            try {
+                while (mPending.size() >= mMaxPending && !mPending.containsKey(key)) {
+                    wait();
+                }
+            } catch (InterruptedException e) {
+                // 被中断了就不再等待，直接放进队列，超出上限一个也没关系
+                Thread.currentThread().interrupt();
+            }
+            if (mPending.put(key, copy) != null) {
+                mCoalescedCount.incrementAndGet();
+            }
+            if (mScheduled) {
+                return;
+            }
+            mScheduled = true;
+        }
+        try {
+            mExecutor.execute(mWriteTask);
+        } catch (RejectedExecutionException e) {
+            // Nothing will write the queue; write it here instead of losing it.
+            mWriteTask.run();
+        }
+    }
+
+    @Override
+    public void initialize() {
+        mBacking.initialize();
+    }
+
+    @Override
+    public void invalidate(String key, boolean fullExpire) {
+        synchronized (mWriteLock) {
+            synchronized (this) {
+                Entry pending = mPending.get(key);
+                if (pending != null) {
+                    pending.softTtl = 0;
+                    if (fullExpire) {
+                        pending.ttl = 0;
+                    }
+                    return;
+                }
+            }
+            mBacking.invalidate(key, fullExpire);
+        }
+    }
+
+    @Override
+    public void remove(String key) {
+        synchronized (mWriteLock) {
+            synchronized (this) {
+                mPending.remove(key);
+                notifyAll();
+            }
+            mBacking.remove(key);
+        }
+    }
+
+    @Override
+    public void clear() {
+        synchronized (mWriteLock) {
+            synchronized (this) {
+                mPending.clear();
+                notifyAll();
+            }
+            mBacking.clear();
+        }
+    }
+
+    /**
+     * Writes every queued put to the backing cache, then flushes it if it buffers writes.
+     */
+    @Override
+    public void flush() throws IOException {
+        writePending();
+        if (mBacking instanceof Flushable) {
+            ((Flushable) mBacking).flush();
+        }
+    }
+
+    /** Writes queued puts, oldest first, until the queue is empty. */
+    private void writePending() {
+        while (true) {
+            synchronized (mWriteLock) {
+                String key;
+                Entry entry;
+                synchronized (this) {
+                    Iterator<Map.Entry<String, Entry>> iterator = mPending.entrySet().iterator();
+                    if (!iterator.hasNext()) {
+                        return;
+                    }
+                    Map.Entry<String, Entry> next = iterator.next();
+                    iterator.remove();
+                    key = next.getKey();
+                    entry = next.getValue();
+                    mWritingKey = key;
+                    mWritingEntry = entry;
+                    notifyAll();
+                }
+                try {
+                    mBacking.put(key, entry);
+                } catch (RuntimeException e) {
+                    VolleyLog.e(e, "Failed to write cache entry for %s", key);
+                } finally {
+                    synchronized (this) {
+                        mWritingKey = null;
+                        mWritingEntry = null;
+                    }
+                }
+            }
+        }
+    }
+}